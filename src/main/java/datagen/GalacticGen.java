@@ -9,6 +9,12 @@ import edu.jhu.prim.bimap.IntObjectBimap;
 import edu.jhu.prim.util.random.Prng;
 import grammar.LanguageToDataSet;
 import grammar.TreeBank;
+import grammar.NaryTree;
+import grammar.PermutationDeltaReader;
+import grammar.SentenceIndex;
+import grammar.TreeBankSnapshot;
+import grammar.UniversalConLLReader;
+import maxent.CompiledModel;
 import maxent.DataSet;
 import maxent.Model;
 import org.apache.commons.cli.ParseException;
@@ -35,7 +41,12 @@ public class GalacticGen {
     public static long seed = 0;
     @Opt(hasArg = true, description = "Task to run:\n" +
             "train (default): train a permutation model from an input treebank\n" +
-            "test: permute a treebank given trained models")
+            "test: permute a treebank given trained models\n" +
+            "snapshot: save the input treebank as a binary snapshot to outputTB, which can be used as inputTB later\n" +
+            "index: build the .idx sentence index next to the input treebank, used by --firstSentence and --parallelLoad\n" +
+            "expand: rebuild the permuted treebank of deltaTB from inputTB into outputTB\n" +
+            "generate: write the synthetic language of --spec with inputTB as substrate to outputTB\n" +
+            "compile: write the ordering table of the nodes of inputTB under the given models to orderTable")
     public static String task = "train";
     @Opt(hasArg = true, description = "Input treebank:\n" +
             "if task == train: It is the treebank for training the permutation model,\n" +
@@ -45,6 +56,17 @@ public class GalacticGen {
     public static File modelPath = new File("your_trained_model.orm");
     @Opt(hasArg = true, description = "Output treebank after permutation")
     public static File outputTB = new File("your_output_treebank.conllu");
+    @Opt(hasArg = true, description = "Permutation delta of inputTB, written by task test instead of outputTB if set,\n" +
+            "and expanded into outputTB by task expand")
+    public static File deltaTB = null;
+    @Opt(hasArg = true, description = "Ordering table of the given models, written by task compile and used by task test if it exists:\n" +
+            "the orders of the nodes found in the table are sampled without computing their scores")
+    public static File orderTable = null;
+    @Opt(hasArg = true, description = "Synthetic language for task generate, as in bin/gd-translate: the substrate\n" +
+            "followed by the superstrate of the nouns and/or verbs, e.g. en~fr@N~hi@V")
+    public static String spec = "en";
+    @Opt(hasArg = true, description = "Directory of the GD_* model directories for --spec (default=models)")
+    public static File modelDir = new File("models");
 
     @Opt(hasArg = true, description = "Feature to be considered into the model:\n" +
             "posArc (default): consider both POS-tag and arc label as feature\n" +
@@ -100,23 +122,31 @@ public class GalacticGen {
 
     }
 
-    Map<String, Double> loadMode() throws ClassNotFoundException {
+    CompiledModel loadMode() throws ClassNotFoundException {
         Map<String, Double> ret = new HashMap<>();
         try {
-            Util.update(Util.loadText(supStrateModelNOUN), ret, Constant.NOUN + Constant.PERM_TAG_DEL, 1 - lambda);
-            Util.update(Util.loadText(subStrateModelNOUN), ret, Constant.NOUN + Constant.PERM_TAG_DEL, lambda);
+            loadModel(supStrateModelNOUN, subStrateModelNOUN, Constant.NOUN, ret);
             permutable.add(Constant.NOUN);
         } catch (IOException e) {
         }
         try {
-            Util.update(Util.loadText(supStrateModelVERB), ret, Constant.VERB + Constant.PERM_TAG_DEL, 1 - lambda);
-            Util.update(Util.loadText(subStrateModelVERB), ret, Constant.VERB + Constant.PERM_TAG_DEL, lambda);
+            loadModel(supStrateModelVERB, subStrateModelVERB, Constant.VERB, ret);
             permutable.add(Constant.VERB);
         } catch (IOException e) {
         }
 
         log.info("permutable Nodes:" + StringUtils.join(permutable, " "));
-        return ret;
+        return CompiledModel.compile(ret);
+    }
+
+    /**
+     * Adds the permutation model of a node (NOUN or VERB) to the given one,
+     * as param = (1-lambda)*param_superstrate + lambda*param_substrate.
+     */
+    public static void loadModel(File supStrateModel, File subStrateModel, String node, Map<String, Double> model)
+            throws IOException, ClassNotFoundException {
+        Util.update(Util.loadText(supStrateModel), model, node + Constant.PERM_TAG_DEL, 1 - lambda);
+        Util.update(Util.loadText(subStrateModel), model, node + Constant.PERM_TAG_DEL, lambda);
     }
 
     /**
@@ -124,15 +154,69 @@ public class GalacticGen {
      */
     public void test() throws Exception {
         // Load model
-        Map<String, Double> permute_model = loadMode();
-        // Load Training data
-        TreeBank inputTreeBank = new TreeBank(TreeBank.DEFAULT_ROOT);
+        CompiledModel permute_model = loadMode();
+        // Stream the input treebank through the permutation into the output file
+        Constant.srcName = inputTB.getName();
+        Iterable<NaryTree> inputTreeBank = TreeBank.streamTreesInUniversalConLLFormat(Constant.numSentencesPerTB, inputTB);
+        if (orderTable != null && orderTable.isFile())
+            TreeBank.loadOrderTable(orderTable, permute_model);
+        if (deltaTB != null)
+            TreeBank.permuteDelta(inputTreeBank, Prng.getRandom(), permute_model, inputTB, deltaTB);
+        else
+            TreeBank.permuteLabelled(inputTreeBank, Prng.getRandom(), permute_model, outputTB);
+    }
+
+    /**
+     * Compile the ordering table of the nodes of a treebank under a model.
+     */
+    public void compile() throws Exception {
+        CompiledModel permute_model = loadMode();
         Constant.srcName = inputTB.getName();
-        inputTreeBank.readTreesInUniversalConLLFormat(Constant.numSentencesPerTB, inputTB);
-        // Permute Training data
-        TreeBank permutedTreeBank = permute_model.size() > 0 ? inputTreeBank.permuteV5(Prng.getRandom(), permute_model) : inputTreeBank;
-        // Save to train file
-        permutedTreeBank.writeLabelled(outputTB);
+        TreeBank.compileOrderTable(TreeBank.streamTreesInUniversalConLLFormat(Constant.numSentencesPerTB, inputTB),
+                permute_model, permutable, orderTable);
+    }
+
+    /**
+     * Rebuild a permuted treebank from its permutation delta.
+     */
+    public void expand() throws Exception {
+        Constant.ruleLength = Integer.MAX_VALUE;
+        try (PermutationDeltaReader reader = new PermutationDeltaReader(deltaTB, inputTB)) {
+            TreeBank.writeLabelled(reader, outputTB);
+        }
+    }
+
+    /**
+     * Generate a synthetic language, with a random generator per sentence.
+     */
+    public void generate() throws Exception {
+        SyntheticLanguage language = new SyntheticLanguage(inputTB, spec, seed, modelDir, Constant.numSentencesPerTB);
+        TreeBank.writeLabelled(language, outputTB);
+    }
+
+    /**
+     * Save a validated treebank as a binary snapshot.
+     */
+    public void snapshot() throws Exception {
+        Constant.ruleLength = Integer.MAX_VALUE;
+        Constant.srcName = inputTB.getName();
+        TreeBankSnapshot.write(new UniversalConLLReader(inputTB, Constant.numSentencesPerTB), outputTB);
+    }
+
+    /**
+     * Build the sentence index of a treebank.
+     */
+    public void index() throws Exception {
+        SentenceIndex.build(inputTB);
+    }
+
+    /**
+     * Rejects the option values the tasks cannot run with.
+     */
+    static void checkOptions() throws ParseException {
+        if (Constant.mcmcFanOut > Constant.MAX_MCMC_FAN_OUT)
+            throw new ParseException("--mcmcFanOut " + Constant.mcmcFanOut + " is above " + Constant.MAX_MCMC_FAN_OUT
+                    + ": the orders of more children are too many to be enumerated");
     }
 
     /**
@@ -148,12 +232,23 @@ public class GalacticGen {
             parser.registerClass(OptWrapper.class);
             parser.registerClass(Constant.class);
             parser.parseArgs(args);
+            checkOptions();
             ReporterManager.init(ReporterManager.reportOut, true);
             Prng.seed(seed);
             Threads.initDefaultPool(OptWrapper.threads);
             GalacticGen galacticGen = new GalacticGen();
             if ("train".equals(task))
                 galacticGen.train();
+            else if ("snapshot".equals(task))
+                galacticGen.snapshot();
+            else if ("index".equals(task))
+                galacticGen.index();
+            else if ("expand".equals(task))
+                galacticGen.expand();
+            else if ("generate".equals(task))
+                galacticGen.generate();
+            else if ("compile".equals(task))
+                galacticGen.compile();
             else
                 galacticGen.test();
         } catch (ParseException e1) {
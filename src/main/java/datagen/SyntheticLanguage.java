@@ -0,0 +1,160 @@
+package datagen;
+
+import grammar.NaryTree;
+import grammar.SentenceIndex;
+import grammar.TreeBank;
+import grammar.UniversalConLLReader;
+import maxent.CompiledModel;
+import util.Constant;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A synthetic language of the galaxy, generated while it is read instead of
+ * being saved to disk.
+ * <p>
+ * The language is given by a spec as in bin/gd-translate, such as
+ * en~fr@N~hi@V: the trees of a substrate treebank (en) whose nouns are
+ * permuted by the model of fr@N and whose verbs are permuted by the model
+ * of hi@V, both mixed with the substrate models by --lambda. Every sentence
+ * is permuted with a random generator of its own, seeded by the seed, the
+ * spec and the index of the sentence in the substrate file, so that any
+ * sentence can be generated again alone with {@link #getTree(int)}.
+ *
+ * @author wdd
+ */
+public class SyntheticLanguage implements Iterable<NaryTree> {
+
+    /**
+     * The directory of the treebank and models of each language, from the
+     * table bin/treebanks.tsv that bin/gd-translate reads too.
+     */
+    public static final Map<String, String> TREEBANK_DIRS = new HashMap<>();
+    static final String TREEBANK_DIRS_RESOURCE = "/treebanks.tsv";
+
+    static {
+        InputStream in = SyntheticLanguage.class.getResourceAsStream(TREEBANK_DIRS_RESOURCE);
+        if (in == null)
+            throw new IllegalStateException("Missing resource " + TREEBANK_DIRS_RESOURCE);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length == 2)
+                    TREEBANK_DIRS.put(fields[0], fields[1]);
+                else if (!line.trim().isEmpty())
+                    throw new IllegalStateException("Not a language and a directory: " + line + " in " + TREEBANK_DIRS_RESOURCE);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read " + TREEBANK_DIRS_RESOURCE, e);
+        }
+    }
+
+    private File substrate;
+    private String spec;
+    private long seed;
+    private int maxsent;
+    private CompiledModel model;
+    private Set<String> permutable = new HashSet<>();
+
+    /**
+     * @param substrate the treebank of the substrate language of the spec.
+     * @param modelDir  the directory holding the GD_* model directories.
+     */
+    public SyntheticLanguage(File substrate, String spec, long seed, File modelDir, int maxsent)
+            throws IOException, ClassNotFoundException {
+        this.substrate = substrate;
+        this.spec = spec;
+        this.seed = seed;
+        this.maxsent = maxsent;
+        Map<String, Double> weights = new HashMap<>();
+        String[] langs = spec.split("~");
+        String sub = langs[0];
+        for (int i = 1; i < langs.length; ++i) {
+            String[] supNode = langs[i].split("@");
+            if (supNode.length != 2 || !("N".equals(supNode[1]) || "V".equals(supNode[1])))
+                throw new IllegalArgumentException("Not a superstrate of the form lang@N or lang@V: " + langs[i] + " in " + spec);
+            String node = "N".equals(supNode[1]) ? Constant.NOUN : Constant.VERB;
+            GalacticGen.loadModel(getModelFile(modelDir, supNode[0], supNode[1]), getModelFile(modelDir, sub, supNode[1]),
+                    node, weights);
+            permutable.add(node);
+        }
+        model = CompiledModel.compile(weights);
+    }
+
+    /**
+     * The model trained on a language for a node (N or V), such as models/GD_French/fr@N.orm.
+     */
+    public static File getModelFile(File modelDir, String lang, String node) throws FileNotFoundException {
+        String dir = TREEBANK_DIRS.get(lang);
+        if (dir == null)
+            throw new IllegalArgumentException("Unknown language: " + lang);
+        File file = new File(new File(modelDir, dir), lang + "@" + node + ".orm");
+        if (!file.isFile())
+            throw new FileNotFoundException("Missing model: " + file);
+        return file;
+    }
+
+    public String getSpec() {
+        return spec;
+    }
+
+    /**
+     * The random generator with which the sentence of the given index in the substrate file is permuted.
+     */
+    public Random getRandom(int sentence) {
+        long z = (seed * 31 + spec.hashCode()) * 0x9E3779B97F4A7C15L + sentence;
+        // splitmix64 finalizer, so that neighbouring sentences get unrelated seeds
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return new Random(z ^ (z >>> 31));
+    }
+
+    /**
+     * Generates the sentence of the given index in the substrate file, which
+     * is found through its sentence index (see {@link SentenceIndex}).
+     *
+     * @throws TreeBank.InvalidTreeException if the sentence is not a valid tree.
+     */
+    public NaryTree getTree(int sentence) throws IOException, TreeBank.InvalidTreeException {
+        Constant.srcName = substrate.getName();
+        NaryTree tree = SentenceIndex.open(substrate).readTree(sentence);
+        TreeBank.permute(tree, getRandom(sentence), model, permutable);
+        return tree;
+    }
+
+    /**
+     * Reads the substrate file again and generates its valid trees one at a time.
+     */
+    @Override
+    public Iterator<NaryTree> iterator() {
+        Constant.srcName = substrate.getName();
+        final UniversalConLLReader reader;
+        try {
+            reader = new UniversalConLLReader(substrate, maxsent);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return new Iterator<NaryTree>() {
+            @Override
+            public boolean hasNext() {
+                return reader.hasNext();
+            }
+
+            @Override
+            public NaryTree next() {
+                NaryTree tree = reader.next();
+                // The reader has read every sentence up to this one, the invalid ones included
+                TreeBank.permute(tree, getRandom(reader.getNumTotal() - 1), model, permutable);
+                return tree;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -41,6 +41,38 @@ public class Sampler {
         throw new IllegalStateException("Wrong Sampler!");
     }
 
+    /**
+     * Running sums of the given weights, for {@link #sampleIndex(double[], Random)}.
+     */
+    public static double[] cumulate(double[] weights) {
+        double[] cumulative = new double[weights.length];
+        double total = 0.;
+        for (int i = 0; i < weights.length; ++i) {
+            total += weights[i];
+            cumulative[i] = total;
+        }
+        return cumulative;
+    }
+
+    /**
+     * Samples an index with probability proportional to its weight by a
+     * binary search of the running sums of the weights. The index drawn for
+     * a random number is the one {@link #sampleOne(Map, Double, Random)}
+     * draws for weights iterated in the order of their indices.
+     */
+    public static int sampleIndex(double[] cumulative, Random random) {
+        double randDouble = random.nextDouble() * cumulative[cumulative.length - 1];
+        int low = 0, high = cumulative.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (cumulative[mid] > randDouble)
+                high = mid;
+            else
+                low = mid + 1;
+        }
+        return low;
+    }
+
     public static <T> T sampleOne(Map<T, Double> distribution, Random random) {
         Double total = 0.0;
         for (Double weight : distribution.values()) total += weight;
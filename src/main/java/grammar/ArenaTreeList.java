@@ -0,0 +1,143 @@
+package grammar;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * List of trees kept outside of the Java heap, for treebanks too large to
+ * be held as NaryTree objects without long garbage collections.
+ * <p>
+ * The words of the trees are encoded as in a snapshot (see
+ * {@link TreeBankSnapshot#encode(NaryTree, Map, List)}) into direct
+ * ByteBuffer arenas of fixed size, one more being allocated whenever the
+ * last one is full. The first word of every sentence and where its comments
+ * are kept in arenas of their own, and the comments themselves, unique to
+ * each sentence, are kept as UTF-8 bytes in byte arenas. Only the dictionary
+ * of the distinct strings of the words stays on the heap. A tree is rebuilt from its words when
+ * it is asked for, so changes to it are not kept.
+ * <p>
+ * Trees may be read by several threads once they are all added.
+ *
+ * @author wdd
+ */
+public class ArenaTreeList extends AbstractList<NaryTree> {
+
+    private static final int ARENA_INTS = 1 << 20;
+    private static final int WORDS_PER_ARENA = ARENA_INTS / TreeBankSnapshot.NUM_FIELDS;
+    // First word, info arena, info offset and info length (-1 if there is no info) of a sentence
+    private static final int SENT_INTS = 4;
+    private static final int SENTS_PER_ARENA = ARENA_INTS / SENT_INTS;
+    private final List<IntBuffer> words = new ArrayList<>();
+    private final List<IntBuffer> sents = new ArrayList<>();
+    private final List<ByteBuffer> infos = new ArrayList<>();
+    private final Map<String, Integer> dict = new HashMap<>();
+    private final List<String> strings = new ArrayList<>();
+    private int numWords, numSents;
+    private long offHeapBytes;
+
+    public ArenaTreeList() {
+    }
+
+    public ArenaTreeList(Iterable<NaryTree> trees) {
+        for (NaryTree tree : trees)
+            add(tree);
+    }
+
+    private IntBuffer newArena() {
+        offHeapBytes += ARENA_INTS * 4;
+        return ByteBuffer.allocateDirect(ARENA_INTS * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    /**
+     * Copies the bytes of the info of a sentence to the last byte arena, or to a new one if they do not fit.
+     */
+    private void putInfo(IntBuffer sent, int pos, String info) {
+        if (info == null) {
+            sent.put(pos + 1, 0);
+            sent.put(pos + 2, 0);
+            sent.put(pos + 3, -1);
+            return;
+        }
+        byte[] bytes = info.getBytes(StandardCharsets.UTF_8);
+        if (infos.isEmpty() || infos.get(infos.size() - 1).remaining() < bytes.length) {
+            int capacity = Math.max(ARENA_INTS * 4, bytes.length);
+            infos.add(ByteBuffer.allocateDirect(capacity));
+            offHeapBytes += capacity;
+        }
+        ByteBuffer arena = infos.get(infos.size() - 1);
+        sent.put(pos + 1, infos.size() - 1);
+        sent.put(pos + 2, arena.position());
+        sent.put(pos + 3, bytes.length);
+        arena.put(bytes);
+    }
+
+    private String getInfo(int sent) {
+        int length = getSentInt(sent, 3);
+        if (length < 0) return null;
+        ByteBuffer arena = infos.get(getSentInt(sent, 1)).duplicate();
+        arena.position(getSentInt(sent, 2));
+        byte[] bytes = new byte[length];
+        arena.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public boolean add(NaryTree tree) {
+        int[] encoded = TreeBankSnapshot.encode(tree, dict, strings);
+        if (numSents % SENTS_PER_ARENA == 0 && numSents / SENTS_PER_ARENA == sents.size())
+            sents.add(newArena());
+        IntBuffer sent = sents.get(numSents / SENTS_PER_ARENA);
+        sent.put(numSents % SENTS_PER_ARENA * SENT_INTS, numWords);
+        putInfo(sent, numSents % SENTS_PER_ARENA * SENT_INTS, tree.info);
+        for (int j = 0; j < encoded.length; j += TreeBankSnapshot.NUM_FIELDS) {
+            if (numWords % WORDS_PER_ARENA == 0 && numWords / WORDS_PER_ARENA == words.size())
+                words.add(newArena());
+            IntBuffer arena = words.get(numWords / WORDS_PER_ARENA);
+            int offset = numWords % WORDS_PER_ARENA * TreeBankSnapshot.NUM_FIELDS;
+            for (int c = 0; c < TreeBankSnapshot.NUM_FIELDS; ++c)
+                arena.put(offset + c, encoded[j + c]);
+            ++numWords;
+        }
+        ++numSents;
+        ++modCount;
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return numSents;
+    }
+
+    /**
+     * Rebuilds the idx-th tree. Every call returns a new tree.
+     */
+    @Override
+    public NaryTree get(int idx) {
+        if (idx < 0 || idx >= numSents)
+            throw new IndexOutOfBoundsException("Index: " + idx + ", Size: " + numSents);
+        int start = getSentInt(idx, 0);
+        int end = idx + 1 < numSents ? getSentInt(idx + 1, 0) : numWords;
+        int[] encoded = new int[(end - start) * TreeBankSnapshot.NUM_FIELDS];
+        for (int t = start, j = 0; t < end; ++t) {
+            IntBuffer arena = words.get(t / WORDS_PER_ARENA);
+            int offset = t % WORDS_PER_ARENA * TreeBankSnapshot.NUM_FIELDS;
+            for (int c = 0; c < TreeBankSnapshot.NUM_FIELDS; ++c)
+                encoded[j++] = arena.get(offset + c);
+        }
+        return TreeBankSnapshot.decode(encoded, end - start, getInfo(idx), strings);
+    }
+
+    private int getSentInt(int sent, int field) {
+        return sents.get(sent / SENTS_PER_ARENA).get(sent % SENTS_PER_ARENA * SENT_INTS + field);
+    }
+
+    /**
+     * Number of bytes held off the heap.
+     */
+    public long getOffHeapBytes() {
+        return offHeapBytes;
+    }
+}
@@ -0,0 +1,39 @@
+package grammar;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a range of a file channel with positional reads, so that several
+ * threads can share the channel. Closing the stream leaves the channel open.
+ *
+ * @author wdd
+ */
+class ChannelInputStream extends InputStream {
+    private FileChannel channel;
+    private long pos, end;
+
+    public ChannelInputStream(FileChannel channel, long start, long end) {
+        this.channel = channel;
+        this.pos = start;
+        this.end = end;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (pos >= end) return -1;
+        len = (int) Math.min(len, end - pos);
+        int n = channel.read(ByteBuffer.wrap(b, off, len), pos);
+        if (n <= 0) return -1;
+        pos += n;
+        return n;
+    }
+}
@@ -0,0 +1,370 @@
+package grammar;
+
+import edu.jhu.prim.bimap.IntObjectBimap;
+import edu.jhu.prim.util.Lambda;
+import util.Constant;
+
+import java.util.*;
+
+/**
+ * Array-based form of the tree of a sentence, with the same nodes as the
+ * {@link NaryTree} read from it: for every word, a POS node, its lexical
+ * leaf and, if the word has dependents, a header node between the two.
+ * <p>
+ * With n the number of words of the source sentence, node w is the POS node
+ * of word w, node n + w its header and node 2n + w its lexical leaf. The
+ * nodes are linked by parent, first child and next sibling arrays, the
+ * UPOS and DEPREL of the words are ids in a dictionary shared by the trees,
+ * and only the fields of the words are kept as maps. Words which are not
+ * attached to the root are not reachable from it, as in a NaryTree.
+ * <p>
+ * The dictionary is not thread-safe, so trees sharing one must be built by
+ * a single thread.
+ *
+ * @author wdd
+ */
+public class CompactTree {
+
+    private static final int NONE = -1;
+    public String info;
+    private final int n;
+    private int root;
+    private final int[] parent, firstChild, nextSibling;
+    private final int[] head, upos, deprel;
+    private final Map<String, String>[] fields;
+    private final IntObjectBimap<String> dictionary;
+    private final int nounId, propnId, pronId, verbId;
+
+    @SuppressWarnings("unchecked")
+    private CompactTree(int n, IntObjectBimap<String> dictionary) {
+        this.n = n;
+        this.parent = new int[3 * n];
+        this.firstChild = new int[3 * n];
+        this.nextSibling = new int[3 * n];
+        this.head = new int[n];
+        this.upos = new int[n];
+        this.deprel = new int[n];
+        this.fields = (Map<String, String>[]) new Map[n];
+        this.dictionary = dictionary;
+        this.nounId = dictionary.lookupIndex(Constant.NOUN);
+        this.propnId = dictionary.lookupIndex(Constant.PROPN);
+        this.pronId = dictionary.lookupIndex(Constant.PRON);
+        this.verbId = dictionary.lookupIndex(Constant.VERB);
+        Arrays.fill(parent, NONE);
+        Arrays.fill(firstChild, NONE);
+        Arrays.fill(nextSibling, NONE);
+    }
+
+    /**
+     * Reads the tree of a sentence if the validator accepts it, like
+     * {@link NaryTree#readTreeInUniversalConLLFormat(ConllSentence, SentenceValidator)}.
+     *
+     * @return null if the sentence is not a valid tree.
+     */
+    public static CompactTree readTreeInUniversalConLLFormat(ConllSentence sentence, SentenceValidator validator,
+                                                             IntObjectBimap<String> dictionary) {
+        if (Constant.filterPuncts != 0) {
+            // Punctuation filtering reshapes the tree, which only NaryTree knows how to do
+            NaryTree tree = NaryTree.readTreeInUniversalConLLFormat(sentence, validator);
+            return tree == null ? null : new CompactTree(tree, dictionary);
+        }
+        if (validator.validate(sentence) != SentenceValidator.Reason.VALID)
+            return null;
+        int numWords = 0;
+        for (int i = 0; i < sentence.size(); ++i)
+            if (sentence.getKind(i) == ConllSentence.WORD)
+                ++numWords;
+        CompactTree tree = new CompactTree(numWords, dictionary);
+        StringBuilder info = new StringBuilder(sentence.getCommentsAsInfo()).append("# sentence-tokens-src:");
+        int lineNumber = sentence.getStartLineNumber();
+        byte[] data = sentence.copyData();
+        int[] colStart = sentence.copyColumnStarts();
+        for (int i = 0, w = 0; i < sentence.size(); ++i) {
+            if (sentence.getKind(i) != ConllSentence.WORD)
+                continue;
+            ConllToken token = new ConllToken(data, colStart, i, Constant.srcName, lineNumber + i, sentence.getId(i));
+            info.append(' ').append(token.get(Constant.FORM));
+            tree.fields[w] = token;
+            tree.head[w] = sentence.getHead(i) - 1;
+            tree.upos[w] = dictionary.lookupIndex(token.get(Constant.UPOS));
+            tree.deprel[w] = dictionary.lookupIndex(token.get(Constant.DEPREL));
+            ++w;
+        }
+        tree.link();
+        tree.info = info.append('\n').toString();
+        return tree;
+    }
+
+    /**
+     * Links the nodes from the heads of the words, in the order of the
+     * words, as {@link NaryTree#assembleTree(List, List)} does.
+     */
+    private void link() {
+        boolean[] hasDependents = new boolean[n];
+        root = NONE;
+        for (int w = 0; w < n; ++w) {
+            if (head[w] >= 0)
+                hasDependents[head[w]] = true;
+            else
+                root = w;
+        }
+        int[] lastChild = new int[n];
+        Arrays.fill(lastChild, NONE);
+        for (int w = 0; w < n; ++w) {
+            int leaf = 2 * n + w;
+            if (hasDependents[w]) {
+                appendChild(n + w, leaf, lastChild);
+                appendChild(w, n + w, lastChild);
+            } else
+                appendChild(w, leaf, lastChild);
+            if (head[w] >= 0)
+                appendChild(head[w], w, lastChild);
+        }
+    }
+
+    /**
+     * Appends a child to a POS node or a header, whose last child is kept in lastChild for the POS nodes.
+     */
+    private void appendChild(int node, int child, int[] lastChild) {
+        parent[child] = node;
+        if (node >= n) {
+            firstChild[node] = child;
+            return;
+        }
+        if (lastChild[node] == NONE)
+            firstChild[node] = child;
+        else
+            nextSibling[lastChild[node]] = child;
+        lastChild[node] = child;
+    }
+
+    /**
+     * Copies a tree read in Universal CoNLL format, in its current order.
+     */
+    public CompactTree(NaryTree tree, IntObjectBimap<String> dictionary) {
+        this(tree.getLexicalLeaves().size(), dictionary);
+        Map<Map<String, String>, Integer> words = new IdentityHashMap<>();
+        List<NaryTree> leaves = tree.getLexicalLeaves();
+        for (int w = 0; w < n; ++w) {
+            Map<String, String> wordFields = leaves.get(w).getFields();
+            words.put(wordFields, w);
+            fields[w] = wordFields;
+            upos[w] = dictionary.lookupIndex(wordFields.get(Constant.UPOS));
+            deprel[w] = dictionary.lookupIndex(wordFields.get(Constant.DEPREL));
+        }
+        root = copy(tree, words);
+        head[root] = NONE;
+        info = tree.info;
+    }
+
+    /**
+     * Copies a POS node or a header with its subtree and returns its index.
+     */
+    private int copy(NaryTree node, Map<Map<String, String>, Integer> words) {
+        int w = words.get(node.getFields());
+        if (node.isLeaf())
+            return 2 * n + w;
+        int index = node.isHeader() ? n + w : w;
+        int last = NONE;
+        for (NaryTree child : node.getChildren()) {
+            int c = copy(child, words);
+            parent[c] = index;
+            if (last == NONE)
+                firstChild[index] = c;
+            else
+                nextSibling[last] = c;
+            last = c;
+            if (c < n)
+                head[c] = w;
+        }
+        return index;
+    }
+
+    /**
+     * Builds the NaryTree of this tree, in its current order.
+     */
+    public NaryTree toNaryTree() {
+        NaryTree tree = toNaryTree(root);
+        tree.info = info;
+        tree.updateStartEnd();
+        return tree;
+    }
+
+    private NaryTree toNaryTree(int node) {
+        int w = getWord(node);
+        if (isLexical(node))
+            return new NaryTree(fields[w].get(Constant.FORM), w, w + 1, null, fields[w], true);
+        List<NaryTree> children = new ArrayList<>(getNumChildren(node));
+        for (int c = firstChild[node]; c != NONE; c = nextSibling[c])
+            children.add(toNaryTree(c));
+        return new NaryTree(getSymbol(node), w, w + 1, children, false);
+    }
+
+    /**
+     * Calls the function on the nodes reachable from the root, each before its children.
+     */
+    public void preOrderTraversal(Lambda.FnIntToVoid function) {
+        int node = root;
+        while (node != NONE) {
+            function.call(node);
+            if (firstChild[node] != NONE) {
+                node = firstChild[node];
+                continue;
+            }
+            while (node != NONE && nextSibling[node] == NONE)
+                node = parent[node];
+            if (node != NONE)
+                node = nextSibling[node];
+        }
+    }
+
+    /**
+     * Calls the function on the nodes reachable from the root, each after its children.
+     */
+    public void postOrderTraversal(Lambda.FnIntToVoid function) {
+        if (root == NONE) return;
+        int node = root;
+        while (firstChild[node] != NONE)
+            node = firstChild[node];
+        while (true) {
+            function.call(node);
+            if (node == root)
+                return;
+            if (nextSibling[node] != NONE) {
+                node = nextSibling[node];
+                while (firstChild[node] != NONE)
+                    node = firstChild[node];
+            } else
+                node = parent[node];
+        }
+    }
+
+    /**
+     * Words in their current order, by their index in the source sentence.
+     */
+    public int[] getWordOrder() {
+        final int[] order = new int[n];
+        final int[] size = new int[1];
+        preOrderTraversal(new Lambda.FnIntToVoid() {
+            @Override
+            public void call(int node) {
+                if (isLexical(node))
+                    order[size[0]++] = getWord(node);
+            }
+        });
+        return size[0] == n ? order : Arrays.copyOf(order, size[0]);
+    }
+
+    /**
+     * Reorders the children of a node.
+     *
+     * @param order the current positions of the children in their new order.
+     */
+    public void setChildOrder(int node, int[] order) {
+        int[] children = getChildren(node);
+        firstChild[node] = children[order[0]];
+        for (int i = 0; i + 1 < order.length; ++i)
+            nextSibling[children[order[i]]] = children[order[i + 1]];
+        nextSibling[children[order[order.length - 1]]] = NONE;
+    }
+
+    public int[] getChildren(int node) {
+        int[] children = new int[getNumChildren(node)];
+        for (int c = firstChild[node], i = 0; c != NONE; c = nextSibling[c])
+            children[i++] = c;
+        return children;
+    }
+
+    public int getNumChildren(int node) {
+        int num = 0;
+        for (int c = firstChild[node]; c != NONE; c = nextSibling[c])
+            ++num;
+        return num;
+    }
+
+    /**
+     * Number of words of the source sentence, the ones which are not reachable from the root included.
+     */
+    public int getNumWords() {
+        return n;
+    }
+
+    public int getRoot() {
+        return root;
+    }
+
+    public int getParent(int node) {
+        return parent[node];
+    }
+
+    public int getFirstChild(int node) {
+        return firstChild[node];
+    }
+
+    public int getNextSibling(int node) {
+        return nextSibling[node];
+    }
+
+    public boolean isLeaf(int node) {
+        return firstChild[node] == NONE;
+    }
+
+    public boolean isHeader(int node) {
+        return node >= n && node < 2 * n;
+    }
+
+    public boolean isLexical(int node) {
+        return node >= 2 * n;
+    }
+
+    /**
+     * The word whose fields a node stands for, as in {@link NaryTree#getFields()}.
+     */
+    public int getWord(int node) {
+        return node % n;
+    }
+
+    /**
+     * The head of a word, -1 for the root.
+     */
+    public int getHead(int word) {
+        return head[word];
+    }
+
+    public int getUpos(int word) {
+        return upos[word];
+    }
+
+    public int getDeprel(int word) {
+        return deprel[word];
+    }
+
+    public Map<String, String> getFields(int word) {
+        return fields[word];
+    }
+
+    public IntObjectBimap<String> getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * The symbol the node has in the NaryTree: the UPOS of a POS node, the
+     * header mark and UPOS of a header, the FORM of a lexical leaf.
+     */
+    public String getSymbol(int node) {
+        int w = getWord(node);
+        if (isLexical(node))
+            return fields[w].get(Constant.FORM);
+        String pos = dictionary.lookupObject(upos[w]);
+        return isHeader(node) ? Constant.HEADER_MARK + pos : pos;
+    }
+
+    public boolean isNoun(int node) {
+        int pos = upos[getWord(node)];
+        return pos == nounId || pos == propnId || pos == pronId;
+    }
+
+    public boolean isVerb(int node) {
+        return upos[getWord(node)] == verbId;
+    }
+}
@@ -0,0 +1,74 @@
+package grammar;
+
+import edu.jhu.prim.bimap.IntObjectBimap;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+
+/**
+ * List of trees kept as {@link CompactTree}s, which share one dictionary of
+ * their tags, for treebanks too large to be held as NaryTree objects.
+ * <p>
+ * A NaryTree is rebuilt from its CompactTree when it is asked for, so
+ * changes to the order of its nodes are not kept. The CompactTrees can be
+ * walked without rebuilding them, with {@link #getCompact(int)}.
+ * <p>
+ * Trees may be read by several threads once they are all added.
+ *
+ * @author wdd
+ */
+public class CompactTreeList extends AbstractList<NaryTree> {
+
+    private final ArrayList<CompactTree> trees = new ArrayList<>();
+    private final IntObjectBimap<String> dictionary = new IntObjectBimap<>();
+
+    public CompactTreeList() {
+    }
+
+    @Override
+    public boolean add(NaryTree tree) {
+        return addCompact(new CompactTree(tree, dictionary));
+    }
+
+    /**
+     * Adds a tree built on the dictionary of this list.
+     */
+    public boolean addCompact(CompactTree tree) {
+        if (tree.getDictionary() != dictionary)
+            throw new IllegalArgumentException("The tree does not use the dictionary of the list");
+        trees.add(tree);
+        ++modCount;
+        return true;
+    }
+
+    /**
+     * Drops the trees after the first numTrees, keeping the dictionary.
+     */
+    public void truncate(int numTrees) {
+        if (numTrees >= trees.size()) return;
+        trees.subList(numTrees, trees.size()).clear();
+        trees.trimToSize();
+        ++modCount;
+    }
+
+    @Override
+    public int size() {
+        return trees.size();
+    }
+
+    /**
+     * Rebuilds the idx-th tree. Every call returns a new tree.
+     */
+    @Override
+    public NaryTree get(int idx) {
+        return trees.get(idx).toNaryTree();
+    }
+
+    public CompactTree getCompact(int idx) {
+        return trees.get(idx);
+    }
+
+    public IntObjectBimap<String> getDictionary() {
+        return dictionary;
+    }
+}
@@ -0,0 +1,247 @@
+package grammar;
+
+import util.Constant;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Raw bytes of one sentence in Universal CoNLL format, together with the
+ * offsets of every tab of every token line.
+ * <p>
+ * Columns are only decoded into Strings when they are asked for; the ID and
+ * HEAD columns are parsed into ints while the sentence is scanned.
+ *
+ * @author wdd
+ */
+public class ConllSentence {
+
+    public static final int NUM_COLUMNS = 10;
+    public static final int ID = 0, FORM = 1, LEMMA = 2, UPOS = 3, POS = 4, FEATURE = 5, HEAD = 6, DEPREL = 7, DEP = 8, MISC = 9;
+
+    /**
+     * Kinds of the ID column: a word, a multiword token range (1-2), an empty node (3.1) or garbage.
+     */
+    public static final int WORD = 0, RANGE = 1, EMPTY = 2, MALFORMED = 3;
+    /**
+     * Value of {@link #getHead(int)} when the HEAD column is not an integer.
+     */
+    public static final int NO_HEAD = Integer.MIN_VALUE;
+
+    private byte[] data;
+    private int length;
+    private int numLines;
+    private int startLineNumber;
+    // Column i of line l spans [colStart[l * (NUM_COLUMNS + 1) + i], colStart[l * (NUM_COLUMNS + 1) + i + 1] - 1)
+    private int[] colStart;
+    private int[] ids, kinds, heads;
+    private int numComments;
+    private int[] commentStart, commentEnd, commentLineNumber;
+
+    public ConllSentence() {
+        this.data = new byte[1024];
+        this.colStart = new int[16 * (NUM_COLUMNS + 1)];
+        this.ids = new int[16];
+        this.kinds = new int[16];
+        this.heads = new int[16];
+        this.commentStart = new int[4];
+        this.commentEnd = new int[4];
+        this.commentLineNumber = new int[4];
+        clear();
+    }
+
+    public void clear() {
+        length = 0;
+        numLines = 0;
+        numComments = 0;
+        startLineNumber = -1;
+    }
+
+    public boolean isEmpty() {
+        return numLines == 0;
+    }
+
+    /**
+     * Number of token lines, including multiword tokens and empty nodes.
+     */
+    public int size() {
+        return numLines;
+    }
+
+    /**
+     * Line number of the first token line in the source file.
+     */
+    public int getStartLineNumber() {
+        return startLineNumber;
+    }
+
+    public int getNumComments() {
+        return numComments;
+    }
+
+    public String getComment(int c) {
+        return new String(data, commentStart[c], commentEnd[c] - commentStart[c], StandardCharsets.UTF_8);
+    }
+
+    public int getCommentLineNumber(int c) {
+        return commentLineNumber[c];
+    }
+
+    /**
+     * Comments in the form written to the output treebank, one per line.
+     */
+    public String getCommentsAsInfo() {
+        if (numComments == 0) return "";
+        StringBuilder sb = new StringBuilder();
+        for (int c = 0; c < numComments; ++c)
+            sb.append("# ").append(Constant.srcName).append(':').append(commentLineNumber[c]).append(':').append(getComment(c)).append('\n');
+        return sb.toString();
+    }
+
+    public int getKind(int line) {
+        return kinds[line];
+    }
+
+    public int getId(int line) {
+        return ids[line];
+    }
+
+    public int getHead(int line) {
+        return heads[line];
+    }
+
+    public int getNumColumns(int line) {
+        int base = line * (NUM_COLUMNS + 1);
+        int n = 0;
+        while (n < NUM_COLUMNS && colStart[base + n + 1] > 0) ++n;
+        return n;
+    }
+
+    public String getColumn(int line, int col) {
+        int base = line * (NUM_COLUMNS + 1);
+        int start = colStart[base + col], end = colStart[base + col + 1] - 1;
+        return new String(data, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Whether a column is the given ASCII string, without decoding it.
+     */
+    boolean columnEquals(int line, int col, String ascii) {
+        int start = getColumnStart(line, col), end = getColumnEnd(line, col);
+        if (end - start != ascii.length())
+            return false;
+        for (int i = start; i < end; ++i)
+            if (data[i] != ascii.charAt(i - start))
+                return false;
+        return true;
+    }
+
+    byte[] getData() {
+        return data;
+    }
+
+    int getColumnStart(int line, int col) {
+        return colStart[line * (NUM_COLUMNS + 1) + col];
+    }
+
+    int getColumnEnd(int line, int col) {
+        return colStart[line * (NUM_COLUMNS + 1) + col + 1] - 1;
+    }
+
+    /**
+     * A copy of the bytes of the sentence, for the offsets of {@link #copyColumnStarts()}.
+     */
+    byte[] copyData() {
+        return Arrays.copyOf(data, length);
+    }
+
+    /**
+     * A copy of the column offsets of every line, {@link #NUM_COLUMNS} + 1 per line.
+     */
+    int[] copyColumnStarts() {
+        return Arrays.copyOf(colStart, numLines * (NUM_COLUMNS + 1));
+    }
+
+    void addComment(byte[] buf, int start, int end, int lineNumber) {
+        if (numComments == commentStart.length) {
+            commentStart = Arrays.copyOf(commentStart, numComments * 2);
+            commentEnd = Arrays.copyOf(commentEnd, numComments * 2);
+            commentLineNumber = Arrays.copyOf(commentLineNumber, numComments * 2);
+        }
+        int off = append(buf, start, end);
+        commentStart[numComments] = off;
+        commentEnd[numComments] = off + end - start;
+        commentLineNumber[numComments++] = lineNumber;
+    }
+
+    /**
+     * Appends a token line (already trimmed) and splits it at its tabs.
+     */
+    void addLine(byte[] buf, int start, int end, int lineNumber) {
+        if (startLineNumber == -1)
+            startLineNumber = lineNumber;
+        if (numLines == ids.length) {
+            colStart = Arrays.copyOf(colStart, numLines * 2 * (NUM_COLUMNS + 1));
+            ids = Arrays.copyOf(ids, numLines * 2);
+            kinds = Arrays.copyOf(kinds, numLines * 2);
+            heads = Arrays.copyOf(heads, numLines * 2);
+        }
+        int off = append(buf, start, end);
+        int base = numLines * (NUM_COLUMNS + 1);
+        Arrays.fill(colStart, base, base + NUM_COLUMNS + 1, 0);
+        colStart[base] = off;
+        int col = 1;
+        int lineEnd = off + end - start;
+        for (int i = off; i < lineEnd && col <= NUM_COLUMNS; ++i)
+            if (data[i] == '\t')
+                colStart[base + col++] = i + 1;
+        if (col <= NUM_COLUMNS)
+            colStart[base + col] = lineEnd + 1;
+        else
+            lineEnd = colStart[base + NUM_COLUMNS] - 1;
+        parseId(numLines, off, col > 1 ? colStart[base + 1] - 1 : lineEnd);
+        heads[numLines] = col > HEAD + 1 ? parseInt(colStart[base + HEAD], colStart[base + HEAD + 1] - 1) : NO_HEAD;
+        ++numLines;
+    }
+
+    private void parseId(int line, int start, int end) {
+        int i = start, id = 0;
+        while (i < end && data[i] >= '0' && data[i] <= '9')
+            id = id * 10 + (data[i++] - '0');
+        ids[line] = id;
+        if (i == start)
+            kinds[line] = MALFORMED;
+        else if (i == end)
+            kinds[line] = WORD;
+        else if (data[i] == '-')
+            kinds[line] = RANGE;
+        else if (data[i] == '.')
+            kinds[line] = EMPTY;
+        else
+            kinds[line] = MALFORMED;
+    }
+
+    private int parseInt(int start, int end) {
+        boolean negative = start < end && data[start] == '-';
+        int i = negative ? start + 1 : start, val = 0;
+        if (i == end) return NO_HEAD;
+        for (; i < end; ++i) {
+            byte b = data[i];
+            if (b < '0' || b > '9') return NO_HEAD;
+            val = val * 10 + (b - '0');
+        }
+        return negative ? -val : val;
+    }
+
+    private int append(byte[] buf, int start, int end) {
+        int len = end - start;
+        if (length + len + 1 > data.length)
+            data = Arrays.copyOf(data, Math.max(data.length * 2, length + len + 1));
+        System.arraycopy(buf, start, data, length, len);
+        int off = length;
+        length += len + 1;
+        data[length - 1] = '\n';
+        return off;
+    }
+
+}
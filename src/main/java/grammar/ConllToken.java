@@ -0,0 +1,164 @@
+package grammar;
+
+import util.Constant;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Fields of a word read from a line in Universal CoNLL format, decoded only
+ * when they are asked for.
+ * <p>
+ * The token keeps the bytes of its sentence, shared with the other words of
+ * the sentence, and the offsets of its columns, so that the columns which a
+ * permutation leaves unchanged can be written back as they were read (see
+ * {@link ConllWriter}). A field which is set replaces the column of the line.
+ *
+ * @author wdd
+ */
+class ConllToken extends AbstractMap<String, String> {
+
+    private static final String[] KEYS = {Constant.FORM, Constant.LEMMA, Constant.UPOS, Constant.POS, Constant.FEATURE,
+            Constant.DEPREL, Constant.DEP, Constant.MISC, Constant.SRC_LINE, Constant.SRC_ID, Constant.SRC_FORM};
+    private static final int[] COLUMNS = {ConllSentence.FORM, ConllSentence.LEMMA, ConllSentence.UPOS, ConllSentence.POS,
+            ConllSentence.FEATURE, ConllSentence.DEPREL, ConllSentence.DEP, ConllSentence.MISC, -1, -1, ConllSentence.FORM};
+    private static final int UPOS = 2, DEPREL = 5, SRC_LINE = 8, SRC_ID = 9;
+
+    private final byte[] data;
+    private final int[] colStart;
+    private final int base;
+    private final String srcName;
+    private final int srcLine, id;
+    // Decoded or set fields
+    private String[] values;
+    // Fields set since the line was read
+    private int setMask;
+    private Map<String, String> extra;
+
+    /**
+     * @param colStart the column offsets of every line of the sentence, as in {@link ConllSentence}.
+     * @param line     the line of the sentence the word was read from.
+     */
+    ConllToken(byte[] data, int[] colStart, int line, String srcName, int srcLine, int id) {
+        this.data = data;
+        this.colStart = colStart;
+        this.base = line * (ConllSentence.NUM_COLUMNS + 1);
+        this.srcName = srcName;
+        this.srcLine = srcLine;
+        this.id = id;
+    }
+
+    /**
+     * The ID of the word in the sentence it was read from.
+     */
+    public int getId() {
+        return id;
+    }
+
+    private static int indexOf(Object key) {
+        for (int i = 0; i < KEYS.length; ++i)
+            if (KEYS[i] == key)
+                return i;
+        for (int i = 0; i < KEYS.length; ++i)
+            if (KEYS[i].equals(key))
+                return i;
+        return -1;
+    }
+
+    @Override
+    public String get(Object key) {
+        int i = indexOf(key);
+        if (i < 0)
+            return extra == null ? null : extra.get(key);
+        if (values == null)
+            values = new String[KEYS.length];
+        if (values[i] == null) {
+            if (i == SRC_LINE)
+                values[i] = srcName + ":" + Integer.toString(srcLine);
+            else if (i == SRC_ID)
+                values[i] = Integer.toString(id);
+            else {
+                int start = colStart[base + COLUMNS[i]], end = colStart[base + COLUMNS[i] + 1] - 1;
+                values[i] = new String(data, start, end - start, StandardCharsets.UTF_8);
+                if (i == UPOS || i == DEPREL)
+                    values[i] = SymbolTable.canonical(values[i]);
+            }
+        }
+        return values[i];
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0 || (extra != null && extra.containsKey(key));
+    }
+
+    @Override
+    public String put(String key, String value) {
+        int i = indexOf(key);
+        if (i < 0) {
+            if (extra == null)
+                extra = new HashMap<>();
+            return extra.put(key, value);
+        }
+        String old = get(key);
+        values[i] = value;
+        setMask |= 1 << i;
+        return old;
+    }
+
+    @Override
+    public int size() {
+        return KEYS.length + (extra == null ? 0 : extra.size());
+    }
+
+    /**
+     * A copy of the fields; changing it does not change the token.
+     */
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        Map<String, String> copy = new LinkedHashMap<>();
+        for (String key : KEYS)
+            copy.put(key, get(key));
+        if (extra != null)
+            copy.putAll(extra);
+        return copy.entrySet();
+    }
+
+    /**
+     * Writes the bytes of the column a field was read from.
+     *
+     * @return false if the field was set since, or does not come from a column.
+     */
+    boolean writeColumn(String key, OutputStream out) throws IOException {
+        int i = indexOf(key);
+        if (i < 0 || COLUMNS[i] < 0 || (setMask & (1 << i)) != 0)
+            return false;
+        int start = colStart[base + COLUMNS[i]], end = colStart[base + COLUMNS[i] + 1] - 1;
+        out.write(data, start, end - start);
+        return true;
+    }
+
+    /**
+     * The bytes of the sentence the word was read from.
+     */
+    byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Offset in {@link #getData()} of the column a field was read from, or -1
+     * if the field was set since or does not come from a column.
+     */
+    int getColumnStart(String key) {
+        int i = indexOf(key);
+        if (i < 0 || COLUMNS[i] < 0 || (setMask & (1 << i)) != 0)
+            return -1;
+        return colStart[base + COLUMNS[i]];
+    }
+
+    int getColumnEnd(String key) {
+        return colStart[base + COLUMNS[indexOf(key)] + 1] - 1;
+    }
+}
@@ -0,0 +1,242 @@
+package grammar;
+
+import util.Constant;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes trees as UTF-8 bytes in the format of the permuted treebanks: the
+ * comments, the words in their current order, then for every word the ten
+ * columns of Universal CoNLL format followed by SRC_LINE, SRC_ID and SRC_FORM.
+ * <p>
+ * Only ID, HEAD and the heads in DEPS change with a permutation. The other
+ * columns of a word read by {@link UniversalConLLReader} are copied from the
+ * bytes of its line, and the heads in DEPS are renumbered in place.
+ *
+ * @author wdd
+ */
+class ConllWriter {
+
+    private static final byte[] SENTENCE_TOKENS = "# sentence-tokens: ".getBytes(StandardCharsets.UTF_8);
+    private OutputStream out;
+    private byte[] buf = new byte[1 << 12];
+    private int len;
+    private int[] newIds = new int[64];
+    @SuppressWarnings("unchecked")
+    private Map<String, String>[] words = (Map<String, String>[]) new Map[64];
+    private int[] heads = new int[64];
+    private int[] stack = new int[64];
+    private int n, top;
+
+    ConllWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    void write(NaryTree tree) throws IOException {
+        write(tree, null);
+    }
+
+    /**
+     * Writes a tree with the children of its nodes in the orders of the
+     * overlay, if not null, instead of their current order.
+     */
+    void write(NaryTree tree, OrderOverlay overlay) throws IOException {
+        n = 0;
+        top = 0;
+        heads[walk(tree, overlay == null || overlay.isEmpty() ? null : overlay)] = -1;
+        int maxId = 0;
+        for (int i = 0; i < n; ++i)
+            maxId = Math.max(maxId, getId(words[i]));
+        if (maxId >= newIds.length)
+            newIds = new int[Math.max(maxId + 1, newIds.length * 2)];
+        Arrays.fill(newIds, 0, maxId + 1, -1);
+        newIds[0] = 0;
+        for (int i = 0; i < n; ++i) {
+            int id = getId(words[i]);
+            if (id > 0)
+                newIds[id] = i + 1;
+        }
+        len = 0;
+        append(tree.info);
+        append(SENTENCE_TOKENS, 0, SENTENCE_TOKENS.length);
+        for (int i = 0; i < n; ++i) {
+            if (i > 0)
+                append((byte) ' ');
+            appendField(words[i], Constant.FORM);
+        }
+        append((byte) '\n');
+        for (int i = 0; i < n; ++i) {
+            Map<String, String> fields = words[i];
+            appendInt(i + 1);
+            append((byte) '\t');
+            appendField(fields, Constant.FORM);
+            append((byte) '\t');
+            appendField(fields, Constant.LEMMA);
+            append((byte) '\t');
+            appendField(fields, Constant.UPOS);
+            append((byte) '\t');
+            appendField(fields, Constant.POS);
+            append((byte) '\t');
+            appendField(fields, Constant.FEATURE);
+            append((byte) '\t');
+            appendInt(heads[i] + 1);
+            append((byte) '\t');
+            appendField(fields, Constant.DEPREL);
+            append((byte) '\t');
+            appendDeps(fields, maxId);
+            append((byte) '\t');
+            appendField(fields, Constant.MISC);
+            append((byte) '\t');
+            appendField(fields, Constant.SRC_LINE);
+            append((byte) '\t');
+            appendField(fields, Constant.SRC_ID);
+            append((byte) '\t');
+            appendField(fields, Constant.SRC_FORM);
+            append((byte) '\n');
+        }
+        append((byte) '\n');
+        out.write(buf, 0, len);
+    }
+
+    /**
+     * Puts the words of a subtree in words in their order, and the heads of
+     * all but its head word in heads, as {@link NaryTree#getDependencies()}.
+     *
+     * @return the position of the head word of the subtree.
+     */
+    private int walk(NaryTree node, OrderOverlay overlay) {
+        if (node.isLeaf()) {
+            if (n == words.length) {
+                words = Arrays.copyOf(words, n * 2);
+                heads = Arrays.copyOf(heads, n * 2);
+            }
+            words[n] = node.getFields();
+            return n++;
+        }
+        List<NaryTree> children = node.getChildren();
+        int id = overlay == null || children.size() < 2 ? -1 : getId(node.getFields());
+        int header = -1, base = top;
+        for (int i = 0; i < children.size(); ++i) {
+            NaryTree child = children.get(id < 0 ? i : overlay.getChild(id, i));
+            int childHeader = walk(child, overlay);
+            if (child.isHeader() || header == -1)
+                header = childHeader;
+            if (top == stack.length)
+                stack = Arrays.copyOf(stack, top * 2);
+            stack[top++] = childHeader;
+        }
+        for (int i = base; i < top; ++i)
+            heads[stack[i]] = header;
+        top = base;
+        return header;
+    }
+
+    /**
+     * The ID of a word in the sentence it was read from, or -1 if unknown.
+     */
+    static int getId(Map<String, String> fields) {
+        if (fields instanceof ConllToken)
+            return ((ConllToken) fields).getId();
+        try {
+            return Integer.parseInt(fields.get(Constant.SRC_ID));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void appendField(Map<String, String> fields, String key) {
+        if (fields instanceof ConllToken) {
+            ConllToken token = (ConllToken) fields;
+            int start = token.getColumnStart(key);
+            if (start >= 0) {
+                append(token.getData(), start, token.getColumnEnd(key));
+                return;
+            }
+        }
+        append(fields.get(key));
+    }
+
+    /**
+     * Appends DEPS with the heads of its head:deprel pairs replaced by their
+     * new IDs. Heads which are not words of the tree are kept as they are.
+     */
+    private void appendDeps(Map<String, String> fields, int maxId) {
+        byte[] data;
+        int start, end;
+        if (fields instanceof ConllToken && ((ConllToken) fields).getColumnStart(Constant.DEP) >= 0) {
+            ConllToken token = (ConllToken) fields;
+            data = token.getData();
+            start = token.getColumnStart(Constant.DEP);
+            end = token.getColumnEnd(Constant.DEP);
+        } else {
+            data = fields.get(Constant.DEP).getBytes(StandardCharsets.UTF_8);
+            start = 0;
+            end = data.length;
+        }
+        if (end - start == 1 && data[start] == '_') {
+            append(data, start, end);
+            return;
+        }
+        int item = start;
+        while (item < end) {
+            int itemEnd = item;
+            while (itemEnd < end && data[itemEnd] != '|') ++itemEnd;
+            int colon = item;
+            while (colon < itemEnd && data[colon] != ':') ++colon;
+            int head = 0, i = item;
+            while (i < colon && data[i] >= '0' && data[i] <= '9' && head <= maxId)
+                head = head * 10 + (data[i++] - '0');
+            if (i == colon && colon > item && colon < itemEnd && head <= maxId && newIds[head] >= 0)
+                appendInt(newIds[head]);
+            else
+                append(data, item, colon);
+            append(data, colon, itemEnd);
+            if (itemEnd < end)
+                append((byte) '|');
+            item = itemEnd + 1;
+        }
+    }
+
+    private void append(String str) {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        append(bytes, 0, bytes.length);
+    }
+
+    private void append(byte[] bytes, int start, int end) {
+        int n = end - start;
+        ensure(n);
+        System.arraycopy(bytes, start, buf, len, n);
+        len += n;
+    }
+
+    private void append(byte b) {
+        ensure(1);
+        buf[len++] = b;
+    }
+
+    private void appendInt(int val) {
+        ensure(11);
+        if (val < 0) {
+            buf[len++] = '-';
+            val = -val;
+        }
+        int end = len;
+        for (int rest = val; rest >= 10; rest /= 10)
+            ++end;
+        for (int i = end; i >= len; --i) {
+            buf[i] = (byte) ('0' + val % 10);
+            val /= 10;
+        }
+        len = end + 1;
+    }
+
+    private void ensure(int n) {
+        if (len + n > buf.length)
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + n));
+    }
+}
@@ -71,11 +71,33 @@ public class LanguageToDataSet {
         }
     }
 
+    /**
+     * Whether a node of the tree is of the kind of {@link CollectPermutation}.
+     */
+    private static boolean hasTargetNode(final CompactTree tree) {
+        final boolean noun = GalacticGen.targetNode.equals(Constant.NOUN);
+        final boolean verb = GalacticGen.targetNode.equals(Constant.VERB);
+        final boolean[] found = new boolean[1];
+        tree.preOrderTraversal(new Lambda.FnIntToVoid() {
+            @Override
+            public void call(int node) {
+                if (!tree.isLeaf(node) && (noun && tree.isNoun(node) || verb && tree.isVerb(node)))
+                    found[0] = true;
+            }
+        });
+        return found[0];
+    }
+
     public static DataSet languagesToDataSetFast(TreeBank treeBank, IntObjectBimap<String> featAlphabet) throws IOException {
         DataSet dataSet = new DataSet();
         CollectPermutation collectPermutation = new CollectPermutation();
-        for (NaryTree tree : treeBank)
-            tree.preOrderTraversal(collectPermutation);
+        for (int i = 0; i < treeBank.size(); ++i) {
+            // A CompactTree is rebuilt only if it has a node the permutations are collected from
+            CompactTree compact = treeBank.getCompact(i);
+            if (compact != null && !hasTargetNode(compact))
+                continue;
+            treeBank.get(i).preOrderTraversal(collectPermutation);
+        }
         Map<String, Map<String, Double>> data = collectPermutation.getData();
         Map<String, Double> freq = collectPermutation.getFreq();
         List<Entry<String, Double>> sorted = Util.entriesSortedByValues(freq);
@@ -89,13 +111,12 @@ public class LanguageToDataSet {
             int totalLength = children.length;
             int factNumber = Util.factorial(totalLength);
             int headerIdx = Util.getHeaderIdx(children);
-            ArrayList<Entry<Integer, Integer>> swapList = Util.getSwapPos(totalLength);
-            assert swapList.size() == factNumber;
+            int[] swaps = Util.getSwapSequence(totalLength);
             FeatureVector[] fvs = new FeatureVector[factNumber];
             double[] weights = new double[factNumber];
             String[] rhss = new String[factNumber];
             int yIdx = 0;
-            for (Entry<Integer, Integer> ent : swapList) {
+            for (int k = 0; ; ++k) {
                 String orderedStr = Util.join(Constant.CHILDREN_DEL, children);
                 Double weight = order2Weight.containsKey(orderedStr) ? order2Weight.get(orderedStr) : 0.;
                 Map<Integer, Double> nodeFeature = Util.toIntegerMap(features, featAlphabet);
@@ -106,7 +127,7 @@ public class LanguageToDataSet {
                 rhss[yIdx++] = orderedStr;
                 dataSet.add(new Instance(fvs, weights, rhss));
                 if (yIdx == factNumber) break;
-                int pos1 = ent.getKey(), pos2 = ent.getValue();
+                int pos1 = swaps[2 * k], pos2 = swaps[2 * k + 1];
                 features = new HashMap<>(features);
                 headerIdx = Features.update(children, features, pos1, pos2, highOrderFeature, headerIdx);
             }
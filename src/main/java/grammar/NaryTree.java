@@ -1,12 +1,11 @@
 package grammar;
 
-import edu.jhu.pacaya.util.files.QFiles;
 import edu.jhu.prim.util.Lambda;
-import org.apache.commons.lang3.StringUtils;
 import util.Constant;
 
 import java.io.IOException;
 import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.util.AbstractMap.SimpleEntry;
 import java.util.*;
 
@@ -31,6 +30,8 @@ public class NaryTree {
      */
     private List<NaryTree> children;
     private boolean isLexical;
+    // Ids in SymbolTable of the symbol and of the arc of the node, -1 until asked for
+    private int symbolId = -1, arcId = -1;
 
     public NaryTree(String symbol, int start, int end, List<NaryTree> children, boolean isLexical) {
         this.symbol = symbol;
@@ -106,6 +107,8 @@ public class NaryTree {
         this.statistics = naryTree.statistics;
         this.punctPos = naryTree.punctPos;
         this.info = naryTree.info;
+        this.symbolId = naryTree.symbolId;
+        this.arcId = naryTree.arcId;
     }
 
     public Map<String, String> getFields() {
@@ -139,12 +142,17 @@ public class NaryTree {
         return numRoots;
     }
 
-    private static String canonicalizeTreeString(String newTreeStr) {
-        return newTreeStr.trim().replaceAll("\\s+\\)", ")").replaceAll("\\s+", " ");
-    }
-
+    /**
+     * The tree in Penn Treebank format on one line, see {@link PtbWriter}.
+     */
     public String getAsOneLineString() {
-        return canonicalizeTreeString(getAsPennTreebankString());
+        StringBuilder sb = new StringBuilder();
+        try {
+            new PtbWriter(sb).writeOneLine(this);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return sb.toString();
     }
 
     /**
@@ -207,6 +215,43 @@ public class NaryTree {
         return res;
     }
 
+    /**
+     * Id in {@link SymbolTable} of the symbol of the node.
+     */
+    public int getSymbolId() {
+        if (symbolId < 0)
+            symbolId = SymbolTable.intern(symbol);
+        return symbolId;
+    }
+
+    /**
+     * Id in {@link SymbolTable} of the arc of the node, as in {@link #getChildrenArcAsString()}.
+     */
+    public int getArcId() {
+        if (arcId < 0)
+            arcId = SymbolTable.intern(isHeader() ? Constant.HEADER_MARK : getFields().get(Constant.DEPREL));
+        return arcId;
+    }
+
+    /**
+     * Ids in {@link SymbolTable} of the strings of {@link #getChildrenPOSAsString()},
+     * {@link #getChildrenArcAsString()} or {@link #getChildrenAsString()}, for the feature pos, arc or posArc.
+     */
+    public int[] getChildrenSymbolIds(String feature) {
+        if (isLeaf() && isLexical()) return null;
+        int[] res = new int[children.size()];
+        int idx = 0;
+        for (NaryTree naryTree : children) {
+            if ("arc".equals(feature))
+                res[idx++] = naryTree.getArcId();
+            else if ("pos".equals(feature))
+                res[idx++] = naryTree.getSymbolId();
+            else
+                res[idx++] = SymbolTable.pair(naryTree.getSymbolId(), naryTree.getArcId());
+        }
+        return res;
+    }
+
     public String[] getChildrenAsString() {
         if (isLeaf() && isLexical()) return null;
         String[] res = new String[children.size()];
@@ -237,18 +282,26 @@ public class NaryTree {
         return leaves.get(header);
     }
 
-    public List<List<String>> toStringInConllFormat() {
-        List<List<String>> ret = new ArrayList<>();
+    /**
+     * The lexical leaves in their current order, each with the position of its head (-1 for the root).
+     */
+    List<SimpleEntry<NaryTree, Integer>> getDependencies() {
         List<SimpleEntry<NaryTree, Integer>> leaves = new ArrayList<>();
         while (leaves.size() < getSentLength()) leaves.add(null);
         genDependency(leaves).setValue(-1);
+        return leaves;
+    }
+
+    public List<List<String>> toStringInConllFormat() {
+        List<List<String>> ret = new ArrayList<>();
+        List<SimpleEntry<NaryTree, Integer>> leaves = getDependencies();
         Map<String, String> posMap = new HashMap<>();
         posMap.put("0", "0"); //    ID: Word index, integer starting at 1 for each new sentence; may be a range for tokens with multiple words.
         for (int i = 0; i < leaves.size(); ++i) {
             SimpleEntry<NaryTree, Integer> leafEnt = leaves.get(i);
             NaryTree leaf = leafEnt.getKey();
             assert leaf.isLeaf() : "Entry is not leaf!";
-            posMap.put(fields.get(Constant.SRC_ID), Integer.toString(i + 1)); //    ID: Word index, integer starting at 1 for each new sentence; may be a range for tokens with multiple words.
+            posMap.put(leaf.getFields().get(Constant.SRC_ID), Integer.toString(i + 1)); //    ID: Word index, integer starting at 1 for each new sentence; may be a range for tokens with multiple words.
         }
         for (int i = 0; i < leaves.size(); ++i) {
             List<String> conllEnt = new ArrayList<>();
@@ -269,8 +322,9 @@ public class NaryTree {
                 StringBuffer sb = new StringBuffer();
                 String[] depList = depString.split("\\|");
                 for (String depItem : depList) {
-                    String[] item = depItem.split(":");
-                    sb.append("|" + posMap.get(item[0]) + ":" + item[1]);
+                    int sep = depItem.indexOf(':');
+                    String head = sep < 0 ? null : posMap.get(depItem.substring(0, sep));
+                    sb.append("|" + (head == null ? depItem : head + depItem.substring(sep)));
                 }
                 depString = sb.toString().substring(1);
             }
@@ -323,97 +377,126 @@ public class NaryTree {
      * start/end fields.
      */
     public static NaryTree readTreeInPtbFormat(Reader reader) throws IOException {
-        QFiles.readUntilCharacter(reader, '(');
-        NaryTree root = readSubtreeInPtbFormat(reader);
-        QFiles.readUntilCharacter(reader, ')');
-        if (root == null) return null;
-        root.updateStartEnd();
-        return root;
+        // Read one character at a time to leave the rest of the stream to the caller
+        return new PtbReader(reader, 1).readTree();
     }
 
     public static NaryTree readTreeInUniversalConLLFormat(ArrayList<String> wordLines, int lineNumber) throws TreeBank.InvalidTreeException {
+        ConllSentence sentence = new ConllSentence();
+        for (int i = 0; i < wordLines.size(); ++i) {
+            byte[] line = wordLines.get(i).getBytes(StandardCharsets.UTF_8);
+            sentence.addLine(line, 0, line.length, lineNumber + i);
+        }
+        return readTreeInUniversalConLLFormat(sentence);
+    }
+
+    /**
+     * Reads a tree from a sentence scanned by {@link UniversalConLLTokenizer}.
+     * Multiword tokens and empty nodes are skipped.
+     */
+    public static NaryTree readTreeInUniversalConLLFormat(ConllSentence sentence) throws TreeBank.InvalidTreeException {
+        NaryTree root = readTreeInUniversalConLLFormat(sentence, new SentenceValidator());
+        if (root == null)
+            throw new TreeBank.InvalidTreeException();
+        return root;
+    }
+
+    /**
+     * Reads a tree from a sentence if the validator accepts it.
+     *
+     * @return null if the sentence is not a valid tree.
+     */
+    public static NaryTree readTreeInUniversalConLLFormat(ConllSentence sentence, SentenceValidator validator) {
+        if (validator.validate(sentence) != SentenceValidator.Reason.VALID)
+            return null;
         ArrayList<NaryTree> naryTreeArray = new ArrayList<>();
         ArrayList<Integer> headArray = new ArrayList<>();
-        ArrayList<String> sentenceTokensSrc = new ArrayList<>();
-        for (int i = 0; i < wordLines.size(); ++i) {
-            String line = wordLines.get(i);
-            String[] items = line.split("\t");
-            int idx = -1;
-            try {
-                idx = Integer.parseInt(items[0]);
-            } catch (NumberFormatException e) {
+        StringBuilder info = new StringBuilder(sentence.getCommentsAsInfo()).append("# sentence-tokens-src:");
+        int lineNumber = sentence.getStartLineNumber();
+        // The words keep the bytes of the sentence rather than Strings of their columns
+        byte[] data = sentence.copyData();
+        int[] colStart = sentence.copyColumnStarts();
+        for (int i = 0; i < sentence.size(); ++i) {
+            if (sentence.getKind(i) != ConllSentence.WORD)
                 continue;
-            }
-            String form = items[1];
-            sentenceTokensSrc.add(form);
-            String lemma = items[2];
-            String upos = items[3];
-            String pos = items[4];
-            String feat = items[5];
-            headArray.add(Integer.parseInt(items[6]) - 1);
-            if (headArray.size() != idx) throw new AssertionError("Wrong idx");
-            String udep = items[7];
-            String dep = items[8];
-            String misc = items[9];
-            NaryTree posNode = new NaryTree(form, idx - 1, idx, null, true);
-            posNode.appendField(Constant.FORM, form);
-            posNode.appendField(Constant.LEMMA, lemma);
-            posNode.appendField(Constant.UPOS, upos);
-            posNode.appendField(Constant.POS, pos);
-            posNode.appendField(Constant.FEATURE, feat);
-            posNode.appendField(Constant.DEPREL, udep);
-            posNode.appendField(Constant.DEP, dep);
-            posNode.appendField(Constant.MISC, misc);
-            posNode.appendField(Constant.SRC_LINE, Constant.srcName + ":" + Integer.toString(lineNumber + i));
-            posNode.appendField(Constant.SRC_ID, items[0]);
-            posNode.appendField(Constant.SRC_FORM, form);
-            ArrayList<NaryTree> tmpChild = new ArrayList<>();
-            tmpChild.add(posNode);
-            naryTreeArray.add(new NaryTree(upos, idx - 1, idx, tmpChild, false));
+            int idx = sentence.getId(i);
+            headArray.add(sentence.getHead(i) - 1);
+            ConllToken token = new ConllToken(data, colStart, i, Constant.srcName, lineNumber + i, idx);
+            info.append(' ').append(token.get(Constant.FORM));
+            naryTreeArray.add(newTokenNode(idx, token));
         }
-        //Check Nonprojectivity
-        for (int dep1 = 0; dep1 < headArray.size(); ++dep1) {
-            int head1 = headArray.get(dep1);
-            for (int dep2 = 0; dep2 < headArray.size(); ++dep2) {
-                int head2 = headArray.get(dep2);
-                if (head1 < 0 || head2 < 0)
-                    continue;
-                if (dep1 > head1 && head1 != head2)
-                    if ((dep1 > head2 && dep1 < dep2 && head1 < head2) || (dep1 < head2 && dep1 > dep2 && head1 < dep2))
-                        throw new TreeBank.InvalidTreeException();
-                if (dep1 < head1 && head1 != head2)
-                    if ((head1 > head2 && head1 < dep2 && dep1 < head2) || (head1 < head2 && head1 > dep2 && dep1 < dep2))
-                        throw new TreeBank.InvalidTreeException();
+        NaryTree root = assembleTree(naryTreeArray, headArray);
+        if (Constant.filterPuncts != 0) {
+            NaryTree.CountMaxChildren maxChildren = new NaryTree.CountMaxChildren();
+            root.postOrderTraversal(maxChildren);
+            if (maxChildren.count > Constant.ruleLength) {
+                validator.reject(SentenceValidator.Reason.FAN_OUT);
+                return null;
             }
         }
+        root.info = info.append('\n').toString();
+        return root;
+    }
+
+    /**
+     * Creates the POS node of the idx-th word (counting from 1) with its lexical leaf.
+     */
+    static NaryTree newTokenNode(int idx, String form, String lemma, String upos, String pos, String feat,
+                                 String udep, String dep, String misc, String srcLine, String srcId) {
+        NaryTree posNode = new NaryTree(form, idx - 1, idx, null, true);
+        posNode.appendField(Constant.FORM, form);
+        posNode.appendField(Constant.LEMMA, lemma);
+        posNode.appendField(Constant.UPOS, upos);
+        posNode.appendField(Constant.POS, pos);
+        posNode.appendField(Constant.FEATURE, feat);
+        posNode.appendField(Constant.DEPREL, udep);
+        posNode.appendField(Constant.DEP, dep);
+        posNode.appendField(Constant.MISC, misc);
+        posNode.appendField(Constant.SRC_LINE, srcLine);
+        posNode.appendField(Constant.SRC_ID, srcId);
+        posNode.appendField(Constant.SRC_FORM, form);
+        ArrayList<NaryTree> tmpChild = new ArrayList<>();
+        tmpChild.add(posNode);
+        return new NaryTree(upos, idx - 1, idx, tmpChild, false);
+    }
+
+    /**
+     * Creates the POS node of the idx-th word (counting from 1) with a lexical leaf holding the given fields.
+     */
+    private static NaryTree newTokenNode(int idx, Map<String, String> fields) {
+        String form = fields.get(Constant.FORM);
+        NaryTree posNode = new NaryTree(form, idx - 1, idx, null, fields, true);
+        ArrayList<NaryTree> tmpChild = new ArrayList<>();
+        tmpChild.add(posNode);
+        return new NaryTree(fields.get(Constant.UPOS), idx - 1, idx, tmpChild, false);
+    }
+
+    /**
+     * Links the POS nodes of a sentence to their heads and marks the heads,
+     * without checking whether the tree is valid.
+     *
+     * @return the root, or null if no word is attached to the root.
+     */
+    static NaryTree assembleTree(List<NaryTree> naryTreeArray, List<Integer> headArray) {
         NaryTree root = null;
-        boolean punctHead = false;
         for (int i = 0; i < naryTreeArray.size(); ++i) {
             NaryTree me = naryTreeArray.get(i);
             if (headArray.get(i) == -1) {
                 root = me;
-                if (me.isPunct()) punctHead = true;
                 continue;
             }
             NaryTree header = naryTreeArray.get(headArray.get(i));
-            if (header.isPunct()) punctHead = true;
             if (i < headArray.get(i))
                 header.children.add(header.children.size() - 1, me);
             else
                 header.children.add(me);
         }
-
-        if (Constant.filterPuncts > 0 && punctHead)
-            throw new TreeBank.InvalidTreeException();
+        if (root == null)
+            return null;
         root.preOrderTraversal(new PushLeavesDown());
         if (Constant.filterPuncts == 1) root.postOrderFilterNodes(new FilterPuncts());
         else if (Constant.filterPuncts == 2) root.preOrderTraversal(new StorePuncts());
         root.updateStartEnd();
-        NaryTree.CountMaxChildren maxChildren = new NaryTree.CountMaxChildren();
-        root.postOrderTraversal(maxChildren);
-        if (maxChildren.count > Constant.ruleLength)
-            throw new TreeBank.InvalidTreeException();
-        root.info = "# sentence-tokens-src: " + StringUtils.join(sentenceTokensSrc.toArray(), " ") + "\n";
         return root;
     }
 
@@ -453,91 +536,6 @@ public class NaryTree {
         }
     }
 
-    /**
-     * Reads an NaryTreeNode from a string.
-     * <p>
-     * Example:
-     * (NP (DT the) (NN board) )
-     * <p>
-     * Note that the resulting tree will NOT have the start/end fields initialized.
-     *
-     * @param reader
-     * @return
-     * @throws IOException
-     */
-    private static NaryTree readSubtreeInPtbFormat(Reader reader) throws IOException {
-        ReaderState state = ReaderState.START;
-        StringBuilder symbolSb = new StringBuilder();
-        ArrayList<NaryTree> children = null;
-        boolean isLexical = false;
-
-        char[] cbuf = new char[1];
-        while (reader.read(cbuf) != -1) {
-            char c = cbuf[0];
-            if (state == ReaderState.START) {
-                if (c == '(') {
-                    state = ReaderState.NONTERMINAL;
-                } else if (c == ')') {
-                    // This was the tail end of a tree.
-                    break;
-                } else if (!isWhitespace(c)) {
-                    symbolSb.append(c);
-                    state = ReaderState.LEXICAL;
-                    isLexical = true;
-                }
-            } else if (state == ReaderState.LEXICAL) {
-                if (isWhitespace(c) || c == ')') {
-                    state = ReaderState.DONE;
-                    symbolSb.append(c);
-                    break;
-                } else {
-                    symbolSb.append(c);
-                }
-            } else if (state == ReaderState.NONTERMINAL) {
-                if (isWhitespace(c)) {
-                    children = readSubTreesInPtbFormat(reader);
-                    state = ReaderState.DONE;
-                    break;
-                } else {
-                    symbolSb.append(c);
-                }
-            } else {
-                throw new IllegalStateException("Invalid state: " + state);
-            }
-        }
-        if (state != ReaderState.DONE) {
-            // This reader did not start with a valid PTB style tree.
-            return null;
-        }
-
-        int start = NOT_INITIALIZED;
-        int end = NOT_INITIALIZED;
-        String symbol = symbolSb.toString();
-        NaryTree root = new NaryTree(symbol, start, end, children, isLexical);
-        return root;
-    }
-
-    private static ArrayList<NaryTree> readSubTreesInPtbFormat(Reader reader) throws IOException {
-        ArrayList<NaryTree> trees = new ArrayList<>();
-        while (true) {
-            NaryTree tree = readSubtreeInPtbFormat(reader);
-            if (tree != null) {
-                if (tree.isLexical) {
-                    String rootSymbol = tree.getSymbol();
-                    char lastChar = rootSymbol.charAt(rootSymbol.length() - 1);
-                    rootSymbol = rootSymbol.substring(0, rootSymbol.length() - 1);
-                    tree.setSymbol(rootSymbol);
-                    trees.add(tree);
-                    if (lastChar == ')')
-                        break;
-                } else
-                    trees.add(tree);
-            } else
-                break;
-        }
-        return trees;
-    }
-
     public NaryTree copy() {
         NaryTree naryTree = new NaryTree(this);
         if (isLeaf())
@@ -548,10 +546,6 @@ public class NaryTree {
         return naryTree;
     }
 
-    private static boolean isWhitespace(char c) {
-        return c == ' ' || c == '\n' || c == '\t';
-    }
-
     public void preOrderTraversal(Lambda.FnO1ToVoid<NaryTree> function) {
         // Visit this node.
         function.call(this);
@@ -734,6 +728,7 @@ public class NaryTree {
 
     public void setSymbol(String symbol) {
         this.symbol = symbol;
+        this.symbolId = -1;
     }
 
     @Override
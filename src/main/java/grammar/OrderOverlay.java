@@ -0,0 +1,71 @@
+package grammar;
+
+import java.util.Arrays;
+
+/**
+ * Orders chosen for the children of the nodes of a tree, kept beside the
+ * tree instead of being applied to it, so that a permuted tree can be
+ * written by {@link ConllWriter#write(NaryTree, OrderOverlay)} without
+ * copying or reordering the tree it was read as.
+ * <p>
+ * A node is identified by the source ID of its head word, as in a
+ * permutation delta, and the orders of all the nodes of a sentence are
+ * stored in one int array which is reused from one sentence to the next.
+ *
+ * @author wdd
+ */
+class OrderOverlay {
+
+    private int[] offsets = new int[64];
+    private int[] orders = new int[256];
+    private int size;
+    private int maxId = -1;
+
+    OrderOverlay() {
+        Arrays.fill(offsets, -1);
+    }
+
+    /**
+     * Forgets the orders of the previous sentence.
+     */
+    void clear() {
+        if (maxId >= 0)
+            Arrays.fill(offsets, 0, maxId + 1, -1);
+        size = 0;
+        maxId = -1;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Records the order of the children of the node headed by the given word.
+     *
+     * @param order the original positions of the children in their new order.
+     */
+    void set(int id, int[] order) {
+        if (id < 0)
+            throw new IllegalArgumentException("No source ID for a reordered node");
+        if (id >= offsets.length) {
+            int old = offsets.length;
+            offsets = Arrays.copyOf(offsets, Math.max(id + 1, old * 2));
+            Arrays.fill(offsets, old, offsets.length, -1);
+        }
+        if (size + order.length > orders.length)
+            orders = Arrays.copyOf(orders, Math.max(size + order.length, orders.length * 2));
+        offsets[id] = size;
+        System.arraycopy(order, 0, orders, size, order.length);
+        size += order.length;
+        maxId = Math.max(maxId, id);
+    }
+
+    /**
+     * The original position of the child at position i of the node headed by the given word.
+     */
+    int getChild(int id, int i) {
+        if (id < 0 || id > maxId || offsets[id] < 0)
+            return i;
+        return orders[offsets[id] + i];
+    }
+}
@@ -0,0 +1,204 @@
+package grammar;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Reads a treebank in Universal CoNLL format on several cores.
+ * <p>
+ * The file is cut into chunks at blank lines, so that every chunk holds
+ * whole sentences. The newlines of every chunk are counted first to recover
+ * the line numbers used by SRC_LINE, then the chunks are parsed into trees
+ * on a fork-join pool and concatenated in their original order. When the
+ * file has an up-to-date {@link SentenceIndex}, the chunks and their line
+ * numbers are taken from it instead of scanning the file.
+ *
+ * @author wdd
+ */
+public class ParallelConLLReader {
+
+    private static final Logger log = Logger.getLogger(ParallelConLLReader.class);
+    private static final int CHUNKS_PER_THREAD = 4;
+    private static final int SCAN_SIZE = 1 << 16;
+
+    /**
+     * Reads the trees of a treebank file, the first maxsent valid ones only. Such a prefix is read by a
+     * {@link UniversalConLLReader} instead, which stops at the last tree kept rather than parsing the
+     * whole file.
+     */
+    public static List<NaryTree> readTrees(final File treeBankFile, int maxsent, int threads) throws IOException {
+        if (maxsent < Integer.MAX_VALUE) {
+            List<NaryTree> trees = new ArrayList<>();
+            for (NaryTree tree : new UniversalConLLReader(treeBankFile, maxsent))
+                trees.add(tree);
+            return trees;
+        }
+        log.info("Loading proposal grammar from Standard TreeBank:" + treeBankFile.getName() + " with " + threads + " threads");
+        RandomAccessFile file = new RandomAccessFile(treeBankFile, "r");
+        final FileChannel channel = file.getChannel();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            final List<Long> bounds = new ArrayList<>();
+            List<Integer> firstLines = new ArrayList<>();
+            SentenceIndex index = SentenceIndex.openIfPresent(treeBankFile);
+            if (index != null) {
+                // The index already knows where the sentences and their lines start
+                int[] parts = index.split(threads * CHUNKS_PER_THREAD);
+                for (int i = 0; i + 1 < parts.length && parts[i] < index.size(); ++i) {
+                    bounds.add(index.getOffset(parts[i]));
+                    firstLines.add(index.getLineNumber(parts[i]) - 1);
+                }
+                bounds.add(channel.size());
+            } else {
+                bounds.addAll(getChunkBounds(channel, threads * CHUNKS_PER_THREAD));
+                firstLines.addAll(getFirstLines(pool, channel, bounds));
+            }
+            int numChunks = bounds.size() - 1;
+            List<Callable<Chunk>> parsers = new ArrayList<>();
+            for (int i = 0; i < numChunks; ++i) {
+                final long start = bounds.get(i), end = bounds.get(i + 1);
+                final int lineNumber = firstLines.get(i);
+                parsers.add(new Callable<Chunk>() {
+                    @Override
+                    public Chunk call() throws IOException {
+                        return parseChunk(channel, start, end, lineNumber);
+                    }
+                });
+            }
+            List<NaryTree> trees = new ArrayList<>();
+            int val = 0, total = 0;
+            SentenceValidator validator = new SentenceValidator();
+            for (Future<Chunk> future : pool.invokeAll(parsers)) {
+                Chunk chunk = future.get();
+                total += chunk.total;
+                validator.addCounts(chunk.validator);
+                trees.addAll(chunk.trees);
+                val += chunk.trees.size();
+            }
+            log.info(Integer.toString(val) + "/" + Integer.toString(total) + " are valid trees");
+            validator.logRejected();
+            return trees;
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException(e);
+        } finally {
+            pool.shutdown();
+            file.close();
+        }
+    }
+
+    /**
+     * Counts the lines of every chunk to know the number of lines before each one.
+     */
+    private static List<Integer> getFirstLines(ForkJoinPool pool, final FileChannel channel, List<Long> bounds)
+            throws InterruptedException, ExecutionException {
+        List<Callable<Integer>> counters = new ArrayList<>();
+        for (int i = 0; i + 1 < bounds.size(); ++i) {
+            final long start = bounds.get(i), end = bounds.get(i + 1);
+            counters.add(new Callable<Integer>() {
+                @Override
+                public Integer call() throws IOException {
+                    return countNewlines(channel, start, end);
+                }
+            });
+        }
+        List<Integer> firstLines = new ArrayList<>();
+        int firstLine = 0;
+        for (Future<Integer> lineCount : pool.invokeAll(counters)) {
+            firstLines.add(firstLine);
+            firstLine += lineCount.get();
+        }
+        return firstLines;
+    }
+
+    private static class Chunk {
+        List<NaryTree> trees = new ArrayList<>();
+        SentenceValidator validator = new SentenceValidator();
+        int total;
+    }
+
+    private static Chunk parseChunk(FileChannel channel, long start, long end, int lineNumber) throws IOException {
+        Chunk chunk = new Chunk();
+        UniversalConLLTokenizer tokenizer = new UniversalConLLTokenizer(new ChannelInputStream(channel, start, end));
+        tokenizer.setLineNumber(lineNumber);
+        ConllSentence sentence = new ConllSentence();
+        while (tokenizer.readSentence(sentence)) {
+            chunk.total += 1;
+            NaryTree tree = NaryTree.readTreeInUniversalConLLFormat(sentence, chunk.validator);
+            if (tree != null)
+                chunk.trees.add(tree);
+        }
+        return chunk;
+    }
+
+    /**
+     * Offsets at which the chunks start, followed by the size of the file.
+     * Every offset but the first one follows a blank line.
+     */
+    private static List<Long> getChunkBounds(FileChannel channel, int numChunks) throws IOException {
+        long size = channel.size();
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        for (int i = 1; i < numChunks; ++i) {
+            long from = Math.max(size * i / numChunks, bounds.get(bounds.size() - 1));
+            long bound = nextSentenceStart(channel, from, size);
+            if (bound > bounds.get(bounds.size() - 1) && bound < size)
+                bounds.add(bound);
+        }
+        bounds.add(size);
+        return bounds;
+    }
+
+    /**
+     * Returns the first offset after the end of a blank line which starts at or after the given offset.
+     */
+    private static long nextSentenceStart(FileChannel channel, long from, long size) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(SCAN_SIZE);
+        boolean atLineStart = false, blank = false;
+        long pos = from;
+        while (pos < size) {
+            buf.clear();
+            int n = channel.read(buf, pos);
+            if (n <= 0) break;
+            for (int i = 0; i < n; ++i) {
+                byte b = buf.get(i);
+                if (b == '\n') {
+                    if (atLineStart && blank)
+                        return pos + i + 1;
+                    atLineStart = true;
+                    blank = true;
+                } else if ((b & 0xff) > ' ')
+                    blank = false;
+            }
+            pos += n;
+        }
+        return size;
+    }
+
+    private static int countNewlines(FileChannel channel, long start, long end) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(SCAN_SIZE);
+        int count = 0;
+        long pos = start;
+        while (pos < end) {
+            buf.clear();
+            buf.limit((int) Math.min(SCAN_SIZE, end - pos));
+            int n = channel.read(buf, pos);
+            if (n <= 0) break;
+            for (int i = 0; i < n; ++i)
+                if (buf.get(i) == '\n')
+                    ++count;
+            pos += n;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,177 @@
+package grammar;
+
+import edu.jhu.prim.util.Lambda;
+import org.apache.log4j.Logger;
+import util.Constant;
+import util.Util;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Rebuilds the trees of a permuted treebank from its permutation delta (see
+ * {@link PermutationDeltaWriter}) and the treebank it was permuted from.
+ * <p>
+ * The source file must be the one the delta was made from, which is checked
+ * against its length and CRC32. Its sentences are read in order, the ones
+ * without a tree in the delta are skipped without being parsed, and the
+ * others are parsed and reordered. Constant.srcName is set to the name of
+ * the source file stored in the delta, so that the rebuilt trees are
+ * written as they were when the delta was made.
+ *
+ * @author wdd
+ */
+public class PermutationDeltaReader implements Iterator<NaryTree>, Iterable<NaryTree>, Closeable {
+
+    private static final Logger log = Logger.getLogger(PermutationDeltaReader.class);
+    private DataInputStream in;
+    private UniversalConLLTokenizer tokenizer;
+    private ConllSentence sentence;
+    private SentenceValidator validator;
+    private String srcName;
+    private int line;
+    private int[] heads = new int[16];
+    private long[] ranks = new long[16];
+    private int[][] orders = new int[16][];
+    private int numTrees;
+    private NaryTree next;
+    private boolean closed;
+
+    public PermutationDeltaReader(File deltaFile, File source) throws IOException {
+        this.in = new DataInputStream(Util.openInputStream(deltaFile));
+        if (in.readInt() != PermutationDeltaWriter.MAGIC)
+            throw new IOException("Not a permutation delta: " + deltaFile);
+        int version = in.readInt();
+        if (version != PermutationDeltaWriter.VERSION)
+            throw new IOException("Unsupported permutation delta version " + version + ": " + deltaFile);
+        srcName = in.readUTF();
+        long length = in.readLong(), crc = in.readLong();
+        if (source.length() != length || PermutationDeltaWriter.checksum(source) != crc)
+            throw new IOException(source + " is not the treebank " + srcName + " the delta " + deltaFile + " was made from");
+        Constant.srcName = srcName;
+        this.tokenizer = new UniversalConLLTokenizer(Util.openInputStream(source));
+        this.sentence = new ConllSentence();
+        this.validator = new SentenceValidator();
+        log.info("Loading permutation delta " + deltaFile.getName() + " of " + srcName);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !closed)
+            next = readNext();
+        return next != null;
+    }
+
+    @Override
+    public NaryTree next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        NaryTree tree = next;
+        next = null;
+        return tree;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Iterator<NaryTree> iterator() {
+        return this;
+    }
+
+    private NaryTree readNext() {
+        try {
+            int diff = (int) PermutationDeltaWriter.readVarLong(in);
+            if (diff == 0) {
+                close();
+                return null;
+            }
+            line += diff;
+            int numOrders = (int) PermutationDeltaWriter.readVarLong(in);
+            if (numOrders > heads.length) {
+                heads = new int[numOrders];
+                ranks = new long[numOrders];
+                orders = new int[numOrders][];
+            }
+            for (int i = 0; i < numOrders; ++i) {
+                heads[i] = (int) PermutationDeltaWriter.readVarLong(in);
+                ranks[i] = PermutationDeltaWriter.readVarLong(in);
+                orders[i] = ranks[i] == PermutationDeltaWriter.UNRANKED ? readOrder() : null;
+            }
+            // The sentence holding the line is the first one to end at or after it
+            do {
+                if (!tokenizer.readSentence(sentence))
+                    throw new IOException("No sentence at line " + line + " of " + srcName);
+            } while (tokenizer.getLineNumber() < line);
+            NaryTree tree = NaryTree.readTreeInUniversalConLLFormat(sentence, validator);
+            if (tree == null)
+                throw new IOException("The sentence at line " + line + " of " + srcName + " is not a valid tree");
+            tree.preOrderTraversal(new ApplyOrders(heads, ranks, orders, numOrders));
+            tree.updateStartEnd();
+            ++numTrees;
+            return tree;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reads an order stored as such, with its number of children.
+     */
+    private int[] readOrder() throws IOException {
+        int[] order = new int[(int) PermutationDeltaWriter.readVarLong(in)];
+        for (int i = 0; i < order.length; ++i)
+            order[i] = (int) PermutationDeltaWriter.readVarLong(in);
+        return order;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        in.close();
+        tokenizer.close();
+        log.info(numTrees + " trees rebuilt");
+    }
+
+    /**
+     * Reorders the children of the nodes whose head word has an order in the delta.
+     */
+    private static class ApplyOrders implements Lambda.FnO1ToVoid<NaryTree> {
+        private int[] heads;
+        private long[] ranks;
+        private int[][] orders;
+        private int numOrders;
+
+        public ApplyOrders(int[] heads, long[] ranks, int[][] orders, int numOrders) {
+            this.heads = heads;
+            this.ranks = ranks;
+            this.orders = orders;
+            this.numOrders = numOrders;
+        }
+
+        @Override
+        public void call(NaryTree node) {
+            if (numOrders == 0 || node.isLeaf() || node.getChildren().size() < 2) return;
+            int head = Integer.parseInt(node.getFields().get(Constant.SRC_ID));
+            for (int i = 0; i < numOrders; ++i) {
+                if (heads[i] != head) continue;
+                List<NaryTree> children = node.getChildren();
+                int[] order = orders[i] != null ? orders[i] : Util.unrankPermutation(ranks[i], children.size());
+                if (order.length != children.size())
+                    throw new IllegalStateException("Order of " + order.length + " children for a node of "
+                            + children.size() + " children, headed by word " + head);
+                List<NaryTree> permutedChildren = new ArrayList<>(children.size());
+                for (int pos : order)
+                    permutedChildren.add(children.get(pos));
+                node.setChildren(permutedChildren);
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package grammar;
+
+import org.apache.log4j.Logger;
+import util.Constant;
+import util.Util;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Writes a permuted treebank as a permutation delta of the treebank it was
+ * permuted from, read back by {@link PermutationDeltaReader}.
+ * <p>
+ * A permuted tree only differs from its source sentence by the order of the
+ * children of some nodes, so the delta stores, after a header with the name,
+ * length and CRC32 of the source file:
+ * <ul>
+ * <li>for every tree, the source line of its first word, as the difference
+ * with the one of the previous tree, and its number of reordered nodes;</li>
+ * <li>for every reordered node, the ID of its head word and the rank of the
+ * order of its children (see {@link Util#rankPermutation(int[])}), or for a
+ * node of more than 20 children, whose orders cannot be ranked in a long,
+ * {@link #UNRANKED} followed by the number of children and the order.</li>
+ * </ul>
+ * All numbers are variable-length integers, and a zero line difference ends
+ * the delta. The trees must be written in the order of the source file.
+ *
+ * @author wdd
+ */
+public class PermutationDeltaWriter implements Closeable {
+
+    private static final Logger log = Logger.getLogger(PermutationDeltaWriter.class);
+    static final int MAGIC = 0x47445044; // "GDPD"
+    static final int VERSION = 1;
+    /**
+     * Stands for the rank of an order stored as such, above the rank of every permutation of up to 20 elements.
+     */
+    static final long UNRANKED = Long.MAX_VALUE;
+    static final int MAX_RANKED = 20;
+    private DataOutputStream out;
+    private int lastLine;
+    private int[] heads = new int[16];
+    private int[][] orders = new int[16][];
+    private int numOrders;
+    private int numTrees;
+    private long totalOrders;
+
+    /**
+     * @param deltaFile the delta, which may be compressed (see {@link Util#openOutputStream(File)}).
+     * @param source    the treebank file the trees are read from.
+     */
+    public PermutationDeltaWriter(File deltaFile, File source) throws IOException {
+        if (TarConllReader.isTarArchive(source) || TreeBankSnapshot.isSnapshot(source))
+            throw new IOException("A permutation delta needs a treebank in Universal CoNLL format: " + source);
+        long crc = checksum(source);
+        this.out = new DataOutputStream(Util.openOutputStream(deltaFile));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(source.getName());
+        out.writeLong(source.length());
+        out.writeLong(crc);
+        log.info("Save permutation delta of " + source.getName() + " to: " + deltaFile.getAbsolutePath());
+    }
+
+    /**
+     * Records the order chosen for the children of the node headed by the given word of the next tree.
+     *
+     * @param order the original positions of the children in their new order, which must not be changed.
+     */
+    void addOrder(int head, int[] order) {
+        boolean identity = true;
+        for (int i = 0; i < order.length && identity; ++i)
+            identity = order[i] == i;
+        if (identity) return;
+        if (numOrders == heads.length) {
+            heads = Arrays.copyOf(heads, numOrders * 2);
+            orders = Arrays.copyOf(orders, numOrders * 2);
+        }
+        heads[numOrders] = head;
+        orders[numOrders] = order;
+        ++numOrders;
+    }
+
+    /**
+     * Writes the orders recorded since the last tree as the ones of the given tree.
+     */
+    public void write(NaryTree tree) throws IOException {
+        int line = getSourceLine(tree);
+        if (line <= lastLine)
+            throw new IOException("Tree from line " + line + " written after the one from line " + lastLine);
+        writeVarLong(out, line - lastLine);
+        writeVarLong(out, numOrders);
+        for (int i = 0; i < numOrders; ++i) {
+            writeVarLong(out, heads[i]);
+            int[] order = orders[i];
+            if (order.length <= MAX_RANKED) {
+                writeVarLong(out, Util.rankPermutation(order));
+                continue;
+            }
+            writeVarLong(out, UNRANKED);
+            writeVarLong(out, order.length);
+            for (int pos : order)
+                writeVarLong(out, pos);
+        }
+        Arrays.fill(orders, 0, numOrders, null);
+        lastLine = line;
+        totalOrders += numOrders;
+        numOrders = 0;
+        ++numTrees;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (out == null) return;
+        writeVarLong(out, 0);
+        out.close();
+        out = null;
+        log.info(String.format("%d trees, %d reordered nodes", numTrees, totalOrders));
+    }
+
+    /**
+     * Smallest source line of the words of a tree.
+     */
+    static int getSourceLine(NaryTree tree) throws IOException {
+        int line = Integer.MAX_VALUE;
+        List<NaryTree> leaves = tree.getLexicalLeaves();
+        for (NaryTree leaf : leaves) {
+            String srcLine = leaf.getFields().get(Constant.SRC_LINE);
+            try {
+                line = Math.min(line, Integer.parseInt(srcLine.substring(srcLine.lastIndexOf(':') + 1)));
+            } catch (NumberFormatException e) {
+                throw new IOException("No source line for a word: " + srcLine);
+            }
+        }
+        return line;
+    }
+
+    static long checksum(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buf = new byte[1 << 16];
+        try (InputStream in = new FileInputStream(file)) {
+            int n;
+            while ((n = in.read(buf)) > 0)
+                crc.update(buf, 0, n);
+        }
+        return crc.getValue();
+    }
+
+    static void writeVarLong(DataOutput out, long val) throws IOException {
+        while ((val & ~0x7fL) != 0) {
+            out.writeByte((int) ((val & 0x7f) | 0x80));
+            val >>>= 7;
+        }
+        out.writeByte((int) val);
+    }
+
+    static long readVarLong(DataInput in) throws IOException {
+        long val = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            val |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return val;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package grammar;
+
+import util.Util;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Streaming reader for treebanks in Penn Treebank format, such as the ones
+ * written by {@link PtbWriter}.
+ * <p>
+ * The characters are scanned from a buffer filled in large blocks, and the
+ * symbols are collected in one reusable array, so only the nodes and their
+ * symbols are allocated. Trees are read one at a time while iterating, and
+ * are the same as the ones of {@link NaryTree#readTreeInPtbFormat(Reader)}.
+ *
+ * @author wdd
+ */
+public class PtbReader implements Iterator<NaryTree>, Iterable<NaryTree>, Closeable {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private Reader reader;
+    private char[] buf;
+    private int pos, limit;
+    private char[] symbol = new char[64];
+    private int symbolLength;
+    // Character which ended the last lexical symbol read
+    private char terminator;
+    private NaryTree next;
+    private boolean closed;
+
+    /**
+     * Reads a treebank file in UTF-8, which may be compressed (see {@link Util#openInputStream(File)}).
+     */
+    public PtbReader(File treeBankFile) throws IOException {
+        this(new InputStreamReader(Util.openInputStream(treeBankFile), StandardCharsets.UTF_8));
+    }
+
+    public PtbReader(Reader reader) {
+        this(reader, BUFFER_SIZE);
+    }
+
+    /**
+     * With a buffer of one character, nothing is read past the end of a tree.
+     */
+    PtbReader(Reader reader, int bufferSize) {
+        this.reader = reader;
+        this.buf = new char[bufferSize];
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !closed) {
+            try {
+                next = readTree();
+                if (next == null)
+                    close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public NaryTree next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        NaryTree tree = next;
+        next = null;
+        return tree;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Iterator<NaryTree> iterator() {
+        return this;
+    }
+
+    /**
+     * Reads the next tree, with its outer parentheses, or returns null at the end of the stream.
+     */
+    public NaryTree readTree() throws IOException {
+        skipPast('(');
+        NaryTree root = readSubtree();
+        skipPast(')');
+        if (root == null) return null;
+        if (root.isLexical())
+            root.setSymbol(root.getSymbol() + terminator);
+        root.updateStartEnd();
+        return root;
+    }
+
+    private NaryTree readSubtree() throws IOException {
+        NaryTree.ReaderState state = NaryTree.ReaderState.START;
+        symbolLength = 0;
+        int ch;
+        while ((ch = read()) != -1) {
+            char c = (char) ch;
+            if (state == NaryTree.ReaderState.START) {
+                if (c == '(') {
+                    state = NaryTree.ReaderState.NONTERMINAL;
+                } else if (c == ')') {
+                    // This was the tail end of a tree.
+                    return null;
+                } else if (!isWhitespace(c)) {
+                    append(c);
+                    state = NaryTree.ReaderState.LEXICAL;
+                }
+            } else if (state == NaryTree.ReaderState.LEXICAL) {
+                if (isWhitespace(c) || c == ')') {
+                    terminator = c;
+                    return new NaryTree(new String(symbol, 0, symbolLength), -1, -1, null, true);
+                }
+                append(c);
+            } else {
+                if (isWhitespace(c)) {
+                    String lhs = new String(symbol, 0, symbolLength);
+                    return new NaryTree(lhs, -1, -1, readSubtrees(), false);
+                }
+                append(c);
+            }
+        }
+        // The stream did not end with a complete tree
+        return null;
+    }
+
+    private ArrayList<NaryTree> readSubtrees() throws IOException {
+        ArrayList<NaryTree> trees = new ArrayList<>();
+        while (true) {
+            NaryTree tree = readSubtree();
+            if (tree == null)
+                break;
+            trees.add(tree);
+            if (tree.isLexical() && terminator == ')')
+                break;
+        }
+        return trees;
+    }
+
+    private void skipPast(char stop) throws IOException {
+        int ch;
+        while ((ch = read()) != -1)
+            if (ch == stop)
+                return;
+    }
+
+    private int read() throws IOException {
+        if (pos == limit) {
+            if (closed)
+                return -1;
+            int n = reader.read(buf, 0, buf.length);
+            if (n <= 0)
+                return -1;
+            pos = 0;
+            limit = n;
+        }
+        return buf[pos++];
+    }
+
+    private void append(char c) {
+        if (symbolLength == symbol.length)
+            symbol = Arrays.copyOf(symbol, symbolLength * 2);
+        symbol[symbolLength++] = c;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\n' || c == '\t';
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        reader.close();
+    }
+}
@@ -0,0 +1,96 @@
+package grammar;
+
+import util.Util;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes trees in Penn Treebank format, one tree per line, while walking
+ * them: nothing is buffered but the underlying output.
+ * <p>
+ * Every run of whitespace, inside a symbol or between two nodes, becomes a
+ * single space, and disappears before a closing parenthesis, as in the
+ * one-line strings of {@link NaryTree#getAsOneLineString()}.
+ *
+ * @author wdd
+ */
+public class PtbWriter implements Closeable {
+
+    private Appendable out;
+    private boolean space;
+    private int numTrees;
+
+    /**
+     * Writes a treebank file in UTF-8, which may be compressed (see {@link Util#openOutputStream(File)}).
+     */
+    public PtbWriter(File treeBankFile) throws IOException {
+        this(new BufferedWriter(new OutputStreamWriter(Util.openOutputStream(treeBankFile), StandardCharsets.UTF_8)));
+    }
+
+    public PtbWriter(Appendable out) {
+        this.out = out;
+    }
+
+    /**
+     * Writes a tree on its own line. Lines are separated by newlines, with no newline after the last one.
+     */
+    public void write(NaryTree tree) throws IOException {
+        if (numTrees++ > 0)
+            out.append('\n');
+        writeOneLine(tree);
+    }
+
+    /**
+     * Writes a tree without any newline.
+     */
+    void writeOneLine(NaryTree tree) throws IOException {
+        space = false;
+        put('(');
+        writeNode(tree);
+        put(')');
+    }
+
+    private void writeNode(NaryTree node) throws IOException {
+        if (node.isLexical()) {
+            put(node.getSymbol());
+            return;
+        }
+        put('(');
+        put(node.getSymbol());
+        for (NaryTree child : node.getChildren()) {
+            space = true;
+            writeNode(child);
+        }
+        put(')');
+    }
+
+    private void put(String str) throws IOException {
+        for (int i = 0; i < str.length(); ++i)
+            put(str.charAt(i));
+    }
+
+    private void put(char c) throws IOException {
+        if (isWhitespace(c)) {
+            space = true;
+            return;
+        }
+        if (space && c != ')')
+            out.append(' ');
+        space = false;
+        out.append(c);
+    }
+
+    /**
+     * Whitespace as matched by \s in regular expressions.
+     */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (out instanceof Closeable)
+            ((Closeable) out).close();
+    }
+}
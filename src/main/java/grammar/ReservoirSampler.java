@@ -0,0 +1,131 @@
+package grammar;
+
+import org.apache.log4j.Logger;
+import util.Constant;
+
+import java.util.*;
+
+/**
+ * One-pass weighted random sampling of trees (reservoir sampling with the
+ * keys of Efraimidis and Spirakis), optionally stratified.
+ * <p>
+ * Every tree gets the key log(u)/w for a uniform u and its weight w, and
+ * only the trees with the largest keys of each stratum are kept, in a
+ * min-heap, so the memory footprint depends on the size of the sample rather
+ * than on the size of the treebank. The sample is returned in the order of
+ * the input.
+ *
+ * @author wdd
+ */
+public class ReservoirSampler {
+
+    private static final Logger log = Logger.getLogger(ReservoirSampler.class);
+    public static final String UNIFORM = "uniform", LENGTH = "length", ROOT_UPOS = "rootUpos", NONE = "none";
+
+    private int sampleSize;
+    private String weight, strata;
+    private int lengthBucket;
+    private Random random;
+    private Map<String, PriorityQueue<Item>> reservoirs = new TreeMap<>();
+    private long seen;
+
+    /**
+     * @param sampleSize   number of trees to keep in every stratum.
+     * @param weight       {@link #UNIFORM}, or {@link #LENGTH} to weight a tree by its number of tokens.
+     * @param strata       {@link #NONE}, {@link #LENGTH} for buckets of lengthBucket tokens, or {@link #ROOT_UPOS}.
+     * @param lengthBucket width of the length buckets.
+     */
+    public ReservoirSampler(int sampleSize, String weight, String strata, int lengthBucket, Random random) {
+        if (!UNIFORM.equals(weight) && !LENGTH.equals(weight))
+            throw new IllegalArgumentException("Unknown sample weight: " + weight);
+        if (!NONE.equals(strata) && !LENGTH.equals(strata) && !ROOT_UPOS.equals(strata))
+            throw new IllegalArgumentException("Unknown sample strata: " + strata);
+        this.sampleSize = sampleSize;
+        this.weight = weight;
+        this.strata = strata;
+        this.lengthBucket = Math.max(1, lengthBucket);
+        this.random = random;
+    }
+
+    /**
+     * Samples --sampleSize trees as set by the --sample* options.
+     */
+    public static List<NaryTree> sample(Iterable<NaryTree> trees) {
+        ReservoirSampler sampler = new ReservoirSampler(Constant.sampleSize, Constant.sampleWeight, Constant.sampleStrata,
+                Constant.sampleLengthBucket, new Random(Constant.sampleSeed));
+        for (NaryTree tree : trees)
+            sampler.offer(tree);
+        return sampler.getSample();
+    }
+
+    public void offer(NaryTree tree) {
+        long order = seen++;
+        int length = tree.getSentLength();
+        double w = LENGTH.equals(weight) ? length : 1.0;
+        if (w <= 0)
+            return;
+        double key = Math.log(random.nextDouble()) / w;
+        String stratum = getStratum(tree, length);
+        PriorityQueue<Item> reservoir = reservoirs.get(stratum);
+        if (reservoir == null) {
+            reservoir = new PriorityQueue<>();
+            reservoirs.put(stratum, reservoir);
+        }
+        if (reservoir.size() < sampleSize)
+            reservoir.add(new Item(key, order, tree));
+        else if (sampleSize > 0 && reservoir.peek().key < key) {
+            reservoir.poll();
+            reservoir.add(new Item(key, order, tree));
+        }
+    }
+
+    private String getStratum(NaryTree tree, int length) {
+        if (LENGTH.equals(strata)) {
+            int bucket = (length - 1) / lengthBucket;
+            return Integer.toString(bucket * lengthBucket + 1) + "-" + Integer.toString((bucket + 1) * lengthBucket);
+        }
+        if (ROOT_UPOS.equals(strata))
+            return tree.getFields().get(Constant.UPOS);
+        return "";
+    }
+
+    /**
+     * The sampled trees of all the strata, in the order they were offered.
+     */
+    public List<NaryTree> getSample() {
+        List<Item> items = new ArrayList<>();
+        for (Map.Entry<String, PriorityQueue<Item>> entry : reservoirs.entrySet()) {
+            items.addAll(entry.getValue());
+            if (!NONE.equals(strata))
+                log.info("Stratum " + entry.getKey() + ": " + entry.getValue().size() + " trees sampled");
+        }
+        Collections.sort(items, new Comparator<Item>() {
+            @Override
+            public int compare(Item a, Item b) {
+                return Long.compare(a.order, b.order);
+            }
+        });
+        List<NaryTree> sample = new ArrayList<>(items.size());
+        for (Item item : items)
+            sample.add(item.tree);
+        log.info(Integer.toString(sample.size()) + "/" + Long.toString(seen) + " trees sampled");
+        return sample;
+    }
+
+    private static class Item implements Comparable<Item> {
+        double key;
+        long order;
+        NaryTree tree;
+
+        public Item(double key, long order, NaryTree tree) {
+            this.key = key;
+            this.order = order;
+            this.tree = tree;
+        }
+
+        @Override
+        public int compareTo(Item o) {
+            return Double.compare(key, o.key);
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package grammar;
+
+import org.apache.log4j.Logger;
+import util.Util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sidecar index of the sentences of a treebank in Universal CoNLL format.
+ * <p>
+ * For every sentence the index stores the byte offset and the length of its
+ * lines, comments included, its number of tokens and the line number of its
+ * first line, as fixed-size records in a file next to the treebank (see
+ * {@link #getIndexFile(File)}). The index is mapped rather than read, so any
+ * sentence is found without scanning the treebank or the index.
+ * <p>
+ * An index is out of date, and is built again, when the size or the
+ * modification time of its treebank changed. Compressed treebanks cannot be
+ * indexed.
+ *
+ * @author wdd
+ */
+public class SentenceIndex {
+
+    private static final Logger log = Logger.getLogger(SentenceIndex.class);
+    private static final int MAGIC = 0x47444958; // "GDIX"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 28;
+    private static final int RECORD_SIZE = 20;
+    private static final String SUFFIX = ".idx";
+
+    private File treeBankFile;
+    private ByteBuffer records;
+    private int size;
+
+    private SentenceIndex(File treeBankFile, ByteBuffer records, int size) {
+        this.treeBankFile = treeBankFile;
+        this.records = records;
+        this.size = size;
+    }
+
+    public static File getIndexFile(File treeBankFile) {
+        return new File(treeBankFile.getPath() + SUFFIX);
+    }
+
+    /**
+     * Maps the index of a treebank, building it first if it is missing or out of date.
+     */
+    public static SentenceIndex open(File treeBankFile) throws IOException {
+        SentenceIndex index = openIfPresent(treeBankFile);
+        if (index == null) {
+            build(treeBankFile);
+            index = openIfPresent(treeBankFile);
+            if (index == null)
+                throw new IOException("Treebank changed while being indexed: " + treeBankFile);
+        }
+        return index;
+    }
+
+    /**
+     * Maps the index of a treebank, or returns null if it is missing, out of date or of another version.
+     */
+    public static SentenceIndex openIfPresent(File treeBankFile) throws IOException {
+        File indexFile = getIndexFile(treeBankFile);
+        if (!indexFile.isFile() || indexFile.length() < HEADER_SIZE)
+            return null;
+        try (RandomAccessFile raf = new RandomAccessFile(indexFile, "r")) {
+            if (raf.length() > Integer.MAX_VALUE)
+                throw new IOException("Sentence index larger than 2GB: " + indexFile);
+            MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (buf.getInt() != MAGIC)
+                throw new IOException("Not a sentence index: " + indexFile);
+            // An index of another version of the format is rebuilt like a stale one
+            if (buf.getInt() != VERSION)
+                return null;
+            if (buf.getLong() != treeBankFile.length() || buf.getLong() != treeBankFile.lastModified())
+                return null;
+            int size = buf.getInt();
+            if (raf.length() != HEADER_SIZE + (long) size * RECORD_SIZE)
+                return null;
+            return new SentenceIndex(treeBankFile, buf, size);
+        }
+    }
+
+    /**
+     * Scans a treebank once and writes its index.
+     */
+    public static void build(File treeBankFile) throws IOException {
+        if (Util.isCompressed(treeBankFile))
+            throw new IOException("Cannot index a compressed treebank: " + treeBankFile);
+        File indexFile = getIndexFile(treeBankFile);
+        log.info("Indexing " + treeBankFile.getName() + " to " + indexFile.getName());
+        long length = treeBankFile.length(), lastModified = treeBankFile.lastModified();
+        int size = 0;
+        try (UniversalConLLTokenizer tokenizer = new UniversalConLLTokenizer(new FileInputStream(treeBankFile));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(length);
+            out.writeLong(lastModified);
+            out.writeInt(0); // number of sentences, written at the end
+            ConllSentence sentence = new ConllSentence();
+            while (tokenizer.readSentence(sentence)) {
+                int numTokens = 0;
+                for (int i = 0; i < sentence.size(); ++i)
+                    if (sentence.getKind(i) == ConllSentence.WORD)
+                        ++numTokens;
+                out.writeLong(tokenizer.getSentenceOffset());
+                out.writeInt(tokenizer.getSentenceLength());
+                out.writeInt(numTokens);
+                out.writeInt(tokenizer.getSentenceLineNumber());
+                ++size;
+            }
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(indexFile, "rw")) {
+            raf.seek(HEADER_SIZE - 4);
+            raf.writeInt(size);
+        }
+        log.info(size + " sentences indexed");
+    }
+
+    /**
+     * Number of sentences of the treebank, including the invalid ones.
+     */
+    public int size() {
+        return size;
+    }
+
+    public long getOffset(int sent) {
+        return records.getLong(HEADER_SIZE + sent * RECORD_SIZE);
+    }
+
+    public int getLength(int sent) {
+        return records.getInt(HEADER_SIZE + sent * RECORD_SIZE + 8);
+    }
+
+    public int getNumTokens(int sent) {
+        return records.getInt(HEADER_SIZE + sent * RECORD_SIZE + 12);
+    }
+
+    public int getLineNumber(int sent) {
+        return records.getInt(HEADER_SIZE + sent * RECORD_SIZE + 16);
+    }
+
+    /**
+     * Cuts the sentences into at most numParts ranges of about the same number
+     * of bytes.
+     *
+     * @return the first sentence of every range, followed by size().
+     */
+    public int[] split(int numParts) {
+        List<Integer> bounds = new ArrayList<>();
+        bounds.add(0);
+        if (size > 0) {
+            long start = getOffset(0), end = getOffset(size - 1) + getLength(size - 1);
+            for (int i = 1; i < numParts; ++i) {
+                int sent = firstSentenceFrom(start + (end - start) * i / numParts);
+                if (sent > bounds.get(bounds.size() - 1) && sent < size)
+                    bounds.add(sent);
+            }
+        }
+        bounds.add(size);
+        int[] ret = new int[bounds.size()];
+        for (int i = 0; i < ret.length; ++i)
+            ret[i] = bounds.get(i);
+        return ret;
+    }
+
+    /**
+     * First sentence which starts at or after the given offset, or size() if none.
+     */
+    private int firstSentenceFrom(long offset) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (getOffset(mid) < offset)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Reads the sentences from the first one up to the last one, excluded, as a
+     * stream of trees which stops after maxsent valid trees.
+     */
+    public UniversalConLLReader openReader(int from, int to, int maxsent) throws IOException {
+        to = Math.min(to, size);
+        long start = 0, end = 0;
+        int lineNumber = 0;
+        if (from < to) {
+            start = getOffset(from);
+            end = getOffset(to - 1) + getLength(to - 1);
+            lineNumber = getLineNumber(from) - 1;
+        }
+        final FileInputStream in = new FileInputStream(treeBankFile);
+        InputStream range = new ChannelInputStream(in.getChannel(), start, end) {
+            @Override
+            public void close() throws IOException {
+                in.close();
+            }
+        };
+        return new UniversalConLLReader(range, treeBankFile.getName(), lineNumber, maxsent);
+    }
+
+    /**
+     * Reads the valid trees among the sentences from the first one up to the last one, excluded.
+     */
+    public List<NaryTree> readTrees(int from, int to) throws IOException {
+        List<NaryTree> trees = new ArrayList<>();
+        for (NaryTree tree : openReader(from, to, Integer.MAX_VALUE))
+            trees.add(tree);
+        return trees;
+    }
+
+    /**
+     * Reads the valid trees among the given sentences, in the given order.
+     */
+    public List<NaryTree> readTrees(int[] sentences) throws IOException {
+        log.info("Loading " + sentences.length + " sentences from Standard TreeBank:" + treeBankFile.getName());
+        List<NaryTree> trees = new ArrayList<>();
+        ConllSentence sentence = new ConllSentence();
+        SentenceValidator validator = new SentenceValidator();
+        try (RandomAccessFile file = new RandomAccessFile(treeBankFile, "r")) {
+            for (int sent : sentences) {
+                NaryTree tree = readTree(file.getChannel(), sent, sentence, validator);
+                if (tree != null)
+                    trees.add(tree);
+            }
+        }
+        log.info(Integer.toString(trees.size()) + "/" + Integer.toString(sentences.length) + " are valid trees");
+        validator.logRejected();
+        return trees;
+    }
+
+    /**
+     * Reads one sentence as a tree.
+     */
+    public NaryTree readTree(int sent) throws IOException, TreeBank.InvalidTreeException {
+        try (RandomAccessFile file = new RandomAccessFile(treeBankFile, "r")) {
+            NaryTree tree = readTree(file.getChannel(), sent, new ConllSentence(), new SentenceValidator());
+            if (tree == null)
+                throw new TreeBank.InvalidTreeException();
+            return tree;
+        }
+    }
+
+    private NaryTree readTree(FileChannel channel, int sent, ConllSentence sentence, SentenceValidator validator) throws IOException {
+        long start = getOffset(sent);
+        UniversalConLLTokenizer tokenizer = new UniversalConLLTokenizer(new ChannelInputStream(channel, start, start + getLength(sent)));
+        tokenizer.setLineNumber(getLineNumber(sent) - 1);
+        if (!tokenizer.readSentence(sentence))
+            throw new IOException("Sentence index out of date: " + getIndexFile(treeBankFile));
+        return NaryTree.readTreeInUniversalConLLFormat(sentence, validator);
+    }
+}
@@ -0,0 +1,186 @@
+package grammar;
+
+import org.apache.log4j.Logger;
+import util.Constant;
+
+import java.util.Arrays;
+
+/**
+ * Checks a sentence on its HEAD column before any tree is built for it, and
+ * counts the sentences rejected for every reason.
+ * <p>
+ * The checks are the ones applied when a tree is built: every word has ten
+ * columns and a head in the sentence, no two arcs below the root cross,
+ * no word is attached to a punctuation mark when punctuation is filtered,
+ * some word is attached to the root, and no word of the tree has more than
+ * --ruleLength - 1 dependents. Projectivity is tested by sorting the arcs
+ * by their left end and scanning them with a stack of right ends, in
+ * O(n log n) instead of comparing all the pairs of arcs.
+ * <p>
+ * A validator keeps its buffers from one sentence to the next, so it is not
+ * thread-safe; use one per reader.
+ *
+ * @author wdd
+ */
+public class SentenceValidator {
+
+    private static final Logger log = Logger.getLogger(SentenceValidator.class);
+
+    public enum Reason {
+        VALID, MALFORMED, NONPROJECTIVE, PUNCT_HEAD, NO_ROOT, FAN_OUT
+    }
+
+    private static final byte UNKNOWN = 0, VISITING = 1, IN_TREE = 2, OUT_OF_TREE = 3;
+
+    private long[] counts = new long[Reason.values().length];
+    private int[] heads = new int[64], lines = new int[64], numDeps = new int[64];
+    private byte[] state = new byte[64];
+    private long[] arcs = new long[64];
+    private int[] stack = new int[64];
+
+    /**
+     * Checks a sentence and counts the result.
+     */
+    public Reason validate(ConllSentence sentence) {
+        Reason reason = check(sentence);
+        counts[reason.ordinal()] += 1;
+        return reason;
+    }
+
+    /**
+     * Counts the last sentence accepted as rejected, for a check which could only be made on its tree.
+     */
+    void reject(Reason reason) {
+        counts[Reason.VALID.ordinal()] -= 1;
+        counts[reason.ordinal()] += 1;
+    }
+
+    public long getCount(Reason reason) {
+        return counts[reason.ordinal()];
+    }
+
+    /**
+     * Adds the counts of another validator, such as the one of another thread.
+     */
+    public void addCounts(SentenceValidator other) {
+        for (int i = 0; i < counts.length; ++i)
+            counts[i] += other.counts[i];
+    }
+
+    /**
+     * Logs the number of sentences rejected for every reason, if any was.
+     */
+    public void logRejected() {
+        StringBuilder sb = new StringBuilder();
+        for (Reason reason : Reason.values())
+            if (reason != Reason.VALID && counts[reason.ordinal()] > 0)
+                sb.append(' ').append(reason.name().toLowerCase()).append('=').append(counts[reason.ordinal()]);
+        if (sb.length() > 0)
+            log.info("Rejected trees:" + sb);
+    }
+
+    private Reason check(ConllSentence sentence) {
+        // Collect the heads of the words, counting from 0, with -1 for the root
+        int n = 0;
+        for (int i = 0; i < sentence.size(); ++i) {
+            if (sentence.getKind(i) != ConllSentence.WORD)
+                continue;
+            if (sentence.getHead(i) == ConllSentence.NO_HEAD || sentence.getNumColumns(i) < ConllSentence.NUM_COLUMNS
+                    || sentence.getId(i) != n + 1)
+                return Reason.MALFORMED;
+            ensureCapacity(n + 1);
+            heads[n] = sentence.getHead(i) - 1;
+            lines[n++] = i;
+        }
+        int root = -1;
+        for (int i = 0; i < n; ++i) {
+            if (heads[i] < -1 || heads[i] >= n)
+                return Reason.MALFORMED;
+            if (heads[i] == -1)
+                root = i;
+        }
+        if (!isProjective(n))
+            return Reason.NONPROJECTIVE;
+        if (Constant.filterPuncts > 0)
+            for (int i = 0; i < n; ++i)
+                if (isPunct(sentence, lines[heads[i] == -1 ? i : heads[i]]))
+                    return Reason.PUNCT_HEAD;
+        if (root == -1)
+            return Reason.NO_ROOT;
+        // Filtering punctuation changes the widest node, which is then checked on the tree
+        if (Constant.filterPuncts == 0 && getFanOut(n, root) > Constant.ruleLength)
+            return Reason.FAN_OUT;
+        return Reason.VALID;
+    }
+
+    /**
+     * Whether no two arcs below the root cross, arcs sharing a word being allowed.
+     */
+    private boolean isProjective(int n) {
+        int numArcs = 0;
+        for (int dep = 0; dep < n; ++dep) {
+            int head = heads[dep];
+            if (head < 0 || head == dep)
+                continue;
+            long left = Math.min(dep, head), right = Math.max(dep, head);
+            // Sort by left end, then by decreasing right end
+            arcs[numArcs++] = (left << 32) | (n - right);
+        }
+        Arrays.sort(arcs, 0, numArcs);
+        int top = 0;
+        for (int a = 0; a < numArcs; ++a) {
+            int left = (int) (arcs[a] >>> 32), right = n - (int) arcs[a];
+            while (top > 0 && stack[top - 1] <= left)
+                --top;
+            if (top > 0 && right > stack[top - 1])
+                return false;
+            stack[top++] = right;
+        }
+        return true;
+    }
+
+    /**
+     * Largest number of children of a node of the tree: the dependents of a
+     * word of the tree, plus the word itself. Only the words which are linked
+     * to the root through their heads end up in the tree.
+     */
+    private int getFanOut(int n, int root) {
+        Arrays.fill(state, 0, n, UNKNOWN);
+        Arrays.fill(numDeps, 0, n, 0);
+        state[root] = IN_TREE;
+        for (int i = 0; i < n; ++i) {
+            // Follow the heads up to a word of known state, then mark the path with it
+            int w = i;
+            while (state[w] == UNKNOWN) {
+                state[w] = VISITING;
+                w = heads[w];
+                if (w < 0)
+                    break;
+            }
+            byte found = w >= 0 && state[w] == IN_TREE ? IN_TREE : OUT_OF_TREE;
+            for (w = i; w >= 0 && state[w] == VISITING; w = heads[w])
+                state[w] = found;
+        }
+        int fanOut = 1;
+        for (int i = 0; i < n; ++i)
+            if (state[i] == IN_TREE && heads[i] >= 0)
+                fanOut = Math.max(fanOut, ++numDeps[heads[i]] + 1);
+        return fanOut;
+    }
+
+    private static boolean isPunct(ConllSentence sentence, int line) {
+        return sentence.columnEquals(line, ConllSentence.UPOS, "PUNCT") || sentence.columnEquals(line, ConllSentence.UPOS, ".");
+    }
+
+    private void ensureCapacity(int n) {
+        if (n <= heads.length)
+            return;
+        int size = Math.max(n, heads.length * 2);
+        heads = Arrays.copyOf(heads, size);
+        lines = Arrays.copyOf(lines, size);
+        numDeps = Arrays.copyOf(numDeps, size);
+        state = Arrays.copyOf(state, size);
+        arcs = Arrays.copyOf(arcs, size);
+        stack = Arrays.copyOf(stack, size);
+    }
+}
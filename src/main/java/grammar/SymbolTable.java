@@ -0,0 +1,128 @@
+package grammar;
+
+import util.Constant;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide dictionary of the symbols of the trees: UPOS and DEPREL
+ * values, node symbols and tag&amp;arc pairs, each mapped to a small int.
+ * <p>
+ * The UPOS and DEPREL fields of the words read in Universal CoNLL format
+ * are the Strings of this table, so each value exists once in memory, and
+ * the children of a node can be described by an int array (see
+ * {@link NaryTree#getChildrenSymbolIds(String)}) instead of joined strings.
+ * Ids are never reused, and the table may be used by several threads.
+ *
+ * @author wdd
+ */
+public final class SymbolTable {
+
+    private static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Long, Integer> pairs = new ConcurrentHashMap<>();
+    private static volatile String[] symbols = new String[256];
+    private static volatile int size;
+
+    private SymbolTable() {
+    }
+
+    public static int intern(String symbol) {
+        Integer id = ids.get(symbol);
+        return id != null ? id : add(symbol);
+    }
+
+    private static synchronized int add(String symbol) {
+        Integer id = ids.get(symbol);
+        if (id != null)
+            return id;
+        String[] syms = size == symbols.length ? Arrays.copyOf(symbols, size * 2) : symbols;
+        syms[size] = symbol;
+        // Publish the symbol before its id
+        symbols = syms;
+        ids.put(symbol, size);
+        return size++;
+    }
+
+    public static String get(int id) {
+        return symbols[id];
+    }
+
+    /**
+     * The String of the table equal to the given one.
+     */
+    public static String canonical(String symbol) {
+        return get(intern(symbol));
+    }
+
+    /**
+     * Id of the tag&amp;arc symbol of a pair of symbols, as in {@link NaryTree#getChildrenAsString()}.
+     */
+    public static int pair(int tag, int arc) {
+        Long key = ((long) tag << 32) | (arc & 0xffffffffL);
+        Integer id = pairs.get(key);
+        if (id == null) {
+            id = intern(get(tag) + Constant.TAG_ARC_DEL + get(arc));
+            pairs.put(key, id);
+        }
+        return id;
+    }
+
+    public static int size() {
+        return size;
+    }
+
+    /**
+     * The symbols of the given ids.
+     */
+    public static String[] get(int[] ids) {
+        String[] strs = new String[ids.length];
+        for (int i = 0; i < ids.length; ++i)
+            strs[i] = get(ids[i]);
+        return strs;
+    }
+
+    /**
+     * Array of symbol ids usable as a map key, such as the kind of a node
+     * followed by the symbols of its children.
+     */
+    public static final class Signature {
+        private final int[] ids;
+        private final int hash;
+
+        public Signature(int[] ids) {
+            this.ids = ids;
+            this.hash = Arrays.hashCode(ids);
+        }
+
+        public Signature(int first, int[] rest) {
+            this(prepend(first, rest));
+        }
+
+        private static int[] prepend(int first, int[] rest) {
+            int[] ids = new int[rest.length + 1];
+            ids[0] = first;
+            System.arraycopy(rest, 0, ids, 1, rest.length);
+            return ids;
+        }
+
+        public int[] getIds() {
+            return ids;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Signature && hash == ((Signature) obj).hash && Arrays.equals(ids, ((Signature) obj).ids);
+        }
+
+        @Override
+        public String toString() {
+            return Arrays.toString(get(ids));
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package grammar;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.log4j.Logger;
+import util.Constant;
+import util.Util;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Streams the trees of every .conllu entry of a (possibly compressed) tar
+ * archive, such as the files of the Galactic release, without extracting it.
+ * <p>
+ * While an entry is read, Constant.srcName is the base name of the entry.
+ *
+ * @author wdd
+ */
+public class TarConllReader implements Iterator<NaryTree>, Iterable<NaryTree>, Closeable {
+
+    private static final Logger log = Logger.getLogger(TarConllReader.class);
+    private static final String CONLLU_SUFFIX = ".conllu";
+    private TarArchiveInputStream tar;
+    private String entryFilter;
+    private int maxsent;
+    private int val;
+    private UniversalConLLReader entryReader;
+    private boolean closed;
+
+    public TarConllReader(File archive, int maxsent) throws IOException {
+        this(archive, null, maxsent);
+    }
+
+    /**
+     * @param entryFilter only the entries whose name contains it are read, all of them if null.
+     */
+    public TarConllReader(File archive, String entryFilter, int maxsent) throws IOException {
+        this.tar = new TarArchiveInputStream(Util.openInputStream(archive));
+        this.entryFilter = entryFilter;
+        this.maxsent = maxsent;
+        log.info("Reading treebanks from archive:" + archive.getName());
+    }
+
+    public static boolean isTarArchive(File file) {
+        String name = file.getName();
+        return name.endsWith(".tar") || name.endsWith(".tar.gz") || name.endsWith(".tgz")
+                || name.endsWith(".tar.bz2") || name.endsWith(".tbz2") || name.endsWith(".tar.xz");
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            while (!closed && val < maxsent) {
+                if (entryReader != null && entryReader.hasNext())
+                    return true;
+                if (!nextEntry())
+                    close();
+            }
+            if (!closed)
+                close();
+            return false;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public NaryTree next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        val += 1;
+        return entryReader.next();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Iterator<NaryTree> iterator() {
+        return this;
+    }
+
+    private boolean nextEntry() throws IOException {
+        TarArchiveEntry entry;
+        while ((entry = tar.getNextTarEntry()) != null) {
+            String name = entry.getName();
+            if (!entry.isFile() || !name.endsWith(CONLLU_SUFFIX) || (entryFilter != null && !name.contains(entryFilter)))
+                continue;
+            Constant.srcName = new File(name).getName();
+            entryReader = new UniversalConLLReader(new EntryInputStream(tar), name, maxsent - val);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        if (entryReader != null)
+            entryReader.close();
+        tar.close();
+    }
+
+    /**
+     * The current entry of the archive, which must not close the archive when its reader is closed.
+     */
+    private static class EntryInputStream extends FilterInputStream {
+        public EntryInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -4,15 +4,19 @@ package grammar;
 import datagen.GalacticGen;
 import dist.Sampler;
 import edu.jhu.prim.util.Lambda;
-import maxent.Features;
+import maxent.CompiledModel;
+import maxent.OrderScorer;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 import util.Constant;
+import util.LruCache;
+import util.OptWrapper;
+import util.ShardedOutputStream;
 import util.Util;
 
 import java.io.*;
 import java.util.*;
-import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * N-ary tree for a context free grammar.
@@ -50,6 +54,13 @@ public class TreeBank implements Iterable<NaryTree> {
         return trees.size();
     }
 
+    /**
+     * The idx-th tree as it is kept with --compactTrees, or null if the trees are not kept as CompactTrees.
+     */
+    public CompactTree getCompact(int idx) {
+        return trees instanceof CompactTreeList ? ((CompactTreeList) trees).getCompact(idx) : null;
+    }
+
     public TreeBank(List<NaryTree> trees, String rootSymbol) {
         this.trees = trees;
         this.rootSymbol = rootSymbol;
@@ -61,76 +72,123 @@ public class TreeBank implements Iterable<NaryTree> {
     }
 
     public void readTreesInPtbFormat(File treeBankFile) throws IOException {
-        FileReader reader = new FileReader(treeBankFile);
-        trees = readTreesInPtbFormat(reader);
-        reader.close();
+        try (PtbReader reader = new PtbReader(treeBankFile)) {
+            trees = readTreesInPtbFormat(reader);
+        }
     }
 
     public void cut(int numTrees) {
-        if (numTrees < trees.size())
+        if (numTrees >= trees.size()) return;
+        // A CompactTreeList is kept as one, for getCompact
+        if (trees instanceof CompactTreeList)
+            ((CompactTreeList) trees).truncate(numTrees);
+        else
             trees = trees.subList(0, numTrees);
     }
 
-    public void readTreesInUniversalConLLFormat(File treeBankFile) throws FileNotFoundException {
+    public void readTreesInUniversalConLLFormat(File treeBankFile) throws IOException {
         readTreesInUniversalConLLFormat(Integer.MAX_VALUE, treeBankFile);
     }
 
-    public void readTreesInUniversalConLLFormat(int maxsent, File treeBankFile) throws FileNotFoundException {
-        log.info("Loading proposal grammar from Standard TreeBank:" + treeBankFile.getName());
-        trees = new ArrayList<>();
-        Scanner scanner = new Scanner(treeBankFile);
-        ArrayList<String> lines = new ArrayList<>();
-        Map<Integer, Integer> trmap = new TreeMap<>();
-        int val = 0, total = 0, lineNumber = 0, startLineNumber = -1;
-        NaryTree tree;
-        StringBuffer comments = new StringBuffer();
-        while (scanner.hasNext()) {
-            lineNumber += 1;
-            String line = scanner.nextLine().trim();
-            if (line.startsWith("#")) {
-                comments.append("# " + Constant.srcName + ":" + Integer.toString(lineNumber) + ":" + line + "\n");
-                continue;
-            }
-            if (line.equals("")) {
-                total += 1;
-                int len = lines.size();
-                trmap.put(len, trmap.containsKey(len) ? trmap.get(len) + 1 : 1);
-                try {
-                    tree = NaryTree.readTreeInUniversalConLLFormat(lines, startLineNumber);
-                    tree.info = comments.toString() + tree.info;
-                    val += 1;
-                    trees.add(tree);
-                    if (trees.size() == maxsent) {
-                        log.info(Integer.toString(val) + "/" + Integer.toString(total) + " are valid trees");
-                        return;
-                    }
-
-                } catch (InvalidTreeException e) {
-                }
-                startLineNumber = -1;
-                lines.clear();
-                comments = new StringBuffer();
-            } else {
-                if (startLineNumber == -1)
-                    startLineNumber = lineNumber;
-                lines.add(line);
-            }
+    public void readTreesInUniversalConLLFormat(int maxsent, File treeBankFile) throws IOException {
+        if (Constant.sampleSize > 0) {
+            trees = ReservoirSampler.sample(openTreesInUniversalConLLFormat(maxsent, treeBankFile));
+            return;
         }
-        try {
-            total += 1;
-            tree = NaryTree.readTreeInUniversalConLLFormat(lines, startLineNumber);
-            tree.info = comments.toString() + tree.info;
-            val += 1;
+        if (TreeBankSnapshot.isSnapshot(treeBankFile)) {
+            trees = TreeBankSnapshot.read(treeBankFile);
+            cut(maxsent);
+            return;
+        }
+        if (TarConllReader.isTarArchive(treeBankFile)) {
+            trees = newTreeList();
+            for (NaryTree tree : new TarConllReader(treeBankFile, maxsent))
+                trees.add(tree);
+            return;
+        }
+        if (Constant.firstSentence > 0) {
+            trees = newTreeList();
+            for (NaryTree tree : openFromFirstSentence(maxsent, treeBankFile))
+                trees.add(tree);
+            return;
+        }
+        if (Constant.parallelLoad && OptWrapper.threads > 1 && !Constant.offHeap && !Constant.compactTrees
+                && !Util.isCompressed(treeBankFile)) {
+            trees = ParallelConLLReader.readTrees(treeBankFile, maxsent, OptWrapper.threads);
+            return;
+        }
+        trees = newTreeList();
+        UniversalConLLReader reader = new UniversalConLLReader(treeBankFile, maxsent);
+        if (trees instanceof CompactTreeList) {
+            CompactTreeList compactTrees = (CompactTreeList) trees;
+            for (CompactTree tree; (tree = reader.nextCompactTree(compactTrees.getDictionary())) != null; )
+                compactTrees.addCompact(tree);
+            return;
+        }
+        for (NaryTree tree : reader)
             trees.add(tree);
+        if (trees instanceof ArenaTreeList)
+            log.info(String.format("%d trees in %d MB off the heap", trees.size(), ((ArenaTreeList) trees).getOffHeapBytes() >> 20));
+    }
+
+    /**
+     * The list the trees read are added to: off the heap with --offHeap, as CompactTrees with --compactTrees.
+     */
+    private static List<NaryTree> newTreeList() {
+        if (Constant.offHeap)
+            return new ArenaTreeList();
+        return Constant.compactTrees ? new CompactTreeList() : new ArrayList<NaryTree>();
+    }
 
-        } catch (InvalidTreeException e) {
+    /**
+     * Iterates over the trees of a treebank in Universal CoNLL format, of a
+     * compressed one, of the .conllu files of a tar archive, or of a snapshot,
+     * without holding the whole treebank in memory if possible. With
+     * --sampleSize, only the sample is held in memory.
+     */
+    public static Iterable<NaryTree> streamTreesInUniversalConLLFormat(int maxsent, File treeBankFile) throws IOException {
+        if (Constant.sampleSize > 0)
+            return ReservoirSampler.sample(openTreesInUniversalConLLFormat(maxsent, treeBankFile));
+        return openTreesInUniversalConLLFormat(maxsent, treeBankFile);
+    }
+
+    private static Iterable<NaryTree> openTreesInUniversalConLLFormat(int maxsent, File treeBankFile) throws IOException {
+        if (TarConllReader.isTarArchive(treeBankFile))
+            return new TarConllReader(treeBankFile, maxsent);
+        if (TreeBankSnapshot.isSnapshot(treeBankFile)) {
+            List<NaryTree> snapshot = TreeBankSnapshot.read(treeBankFile);
+            return snapshot.subList(0, Math.min(maxsent, snapshot.size()));
         }
-        log.info(Integer.toString(val) + "/" + Integer.toString(total) + " are valid trees");
+        if (Constant.firstSentence > 0)
+            return openFromFirstSentence(maxsent, treeBankFile);
+        return new UniversalConLLReader(treeBankFile, maxsent);
+    }
+
+    private static UniversalConLLReader openFromFirstSentence(int maxsent, File treeBankFile) throws IOException {
+        SentenceIndex index = SentenceIndex.open(treeBankFile);
+        return index.openReader(Constant.firstSentence, index.size(), maxsent);
+    }
+
+    /**
+     * Reads the sentences of a treebank in Universal CoNLL format from the
+     * first one up to the last one, excluded, through its sentence index,
+     * which is built if needed.
+     */
+    public void readTreesInUniversalConLLFormat(File treeBankFile, int from, int to) throws IOException {
+        trees = SentenceIndex.open(treeBankFile).readTrees(from, to);
+    }
+
+    /**
+     * Reads the given sentences of a treebank in Universal CoNLL format, in
+     * the given order, through its sentence index, which is built if needed.
+     */
+    public void readTreesInUniversalConLLFormat(File treeBankFile, int[] sentences) throws IOException {
+        trees = SentenceIndex.open(treeBankFile).readTrees(sentences);
     }
 
     public TreeBank(Reader reader, String rootSymbol) throws IOException {
         this.rootSymbol = rootSymbol;
-        trees = readTreesInPtbFormat(reader);
+        trees = readTreesInPtbFormat(new PtbReader(reader));
     }
 
     public void add(NaryTree tree) {
@@ -138,23 +196,24 @@ public class TreeBank implements Iterable<NaryTree> {
     }
 
     public Grammar genRuleCounts() {
-        List<Rule> allRules = new ArrayList<>();
-        for (NaryTree tree : trees) {
-            allRules.add(new Rule(rootSymbol, tree.getSymbol(), 1.0));
-            tree.preOrderTraversal(new CollectRules(allRules));
-        }
-        return new Grammar(allRules, rootSymbol);
+        Grammar grammar = new Grammar(rootSymbol);
+        for (NaryTree tree : trees)
+            countRules(tree, rootSymbol, grammar);
+        return grammar;
+    }
+
+    /**
+     * Adds the rules of a tree, including the one from the root symbol, to a grammar of rule counts.
+     */
+    public static void countRules(NaryTree tree, String rootSymbol, Grammar grammar) {
+        grammar.addRule(new Rule(rootSymbol, tree.getSymbol(), 1.0));
+        tree.preOrderTraversal(new CountRules(grammar));
     }
 
-    private static ArrayList<NaryTree> readTreesInPtbFormat(Reader reader) throws IOException {
+    private static ArrayList<NaryTree> readTreesInPtbFormat(PtbReader reader) {
         ArrayList<NaryTree> trees = new ArrayList<>();
-        while (true) {
-            NaryTree tree = NaryTree.readTreeInPtbFormat(reader);
-            if (tree != null)
-                trees.add(tree);
-            else
-                break;
-        }
+        for (NaryTree tree : reader)
+            trees.add(tree);
         return trees;
     }
 
@@ -187,7 +246,7 @@ public class TreeBank implements Iterable<NaryTree> {
     }
 
 
-    public TreeBank permuteV5(Random random, Map<String, Double> permute_model) {
+    public TreeBank permuteV5(Random random, CompiledModel permute_model) {
         log.info("Generate new TreeBank from Standard TreeBank by permutation");
         TreeBank permutedTreeBank = new TreeBank(DEFAULT_ROOT);
         double cur = 1., total = this.trees.size();
@@ -195,8 +254,7 @@ public class TreeBank implements Iterable<NaryTree> {
             if (Constant.verbose == 1)
                 Util.updateProgress(cur++ / total);
             NaryTree naryTreeCopy = naryTree.copy();
-            naryTreeCopy.preOrderTraversal(new PermuteChildrenFast(permute_model, random));
-            naryTreeCopy.updateStartEnd();
+            permute(naryTreeCopy, random, permute_model);
             permutedTreeBank.add(naryTreeCopy);
         }
         System.out.println();
@@ -204,9 +262,119 @@ public class TreeBank implements Iterable<NaryTree> {
         return permutedTreeBank;
     }
 
+    /**
+     * Permutes the children of the permutable nodes of a tree in place.
+     */
+    public static void permute(NaryTree naryTree, Random random, CompiledModel permute_model) {
+        permute(naryTree, random, permute_model, GalacticGen.permutable, null);
+    }
+
+    /**
+     * Permutes the children of the nodes of a tree whose kind (NOUN or VERB) is in the given set, in place.
+     */
+    public static void permute(NaryTree naryTree, Random random, CompiledModel permute_model, Set<String> permutable) {
+        permute(naryTree, random, permute_model, permutable, null);
+    }
 
-    public static class InvalidTreeException extends Exception {
+    /**
+     * Permutes a tree in place, recording the chosen orders to the given delta if not null.
+     */
+    private static void permute(NaryTree naryTree, Random random, CompiledModel permute_model, Set<String> permutable,
+                                PermutationDeltaWriter delta) {
+        naryTree.preOrderTraversal(new PermuteChildrenFast(permute_model, random, permutable, delta));
+        naryTree.updateStartEnd();
+    }
+
+    /**
+     * Samples the orders of the permutable nodes of a tree into the overlay,
+     * in the order the nodes are permuted in place, without changing the tree.
+     */
+    private static void permute(NaryTree node, PermuteChildrenFast permuter, OrderOverlay overlay) {
+        if (node.isLeaf()) return;
+        int[] order = permuter.sampleOrder(node);
+        if (order != null)
+            overlay.set(ConllWriter.getId(node.getFields()), order);
+        List<NaryTree> children = node.getChildren();
+        for (int i = 0; i < children.size(); ++i)
+            permute(children.get(order == null ? i : order[i]), permuter, overlay);
+    }
+
+    /**
+     * Permutes the trees one at a time while they are read and writes each of
+     * them out right away, so that no treebank is ever held in memory. The
+     * trees are not changed: the chosen orders are kept in an overlay read by
+     * the writer.
+     */
+    public static void permuteLabelled(Iterable<NaryTree> trees, Random random, CompiledModel permute_model, File labelledFn) throws IOException {
+        log.info("Generate new TreeBank from Standard TreeBank by permutation");
+        OutputStream out = openLabelled(labelledFn);
+        ConllWriter writer = new ConllWriter(out);
+        OrderOverlay overlay = new OrderOverlay();
+        PermuteChildrenFast permuter = new PermuteChildrenFast(permute_model, random, GalacticGen.permutable, null);
+        int cur = 0;
+        for (NaryTree naryTree : trees) {
+            overlay.clear();
+            if (permute_model.size() > 0)
+                permute(naryTree, permuter, overlay);
+            writer.write(naryTree, overlay);
+            if (Constant.verbose == 1 && ++cur % 1000 == 0)
+                System.out.print("\r" + cur + " trees");
+        }
+        if (Constant.verbose == 1)
+            System.out.println();
+        out.close();
+        logCaches();
+    }
+
+    /**
+     * Permutes the trees read from a treebank file like
+     * {@link #permuteLabelled(Iterable, Random, CompiledModel, File)}, but only writes
+     * the chosen orders as a permutation delta of the file.
+     */
+    public static void permuteDelta(Iterable<NaryTree> trees, Random random, CompiledModel permute_model, File source, File deltaFn) throws IOException {
+        log.info("Generate new TreeBank from Standard TreeBank by permutation");
+        try (PermutationDeltaWriter delta = new PermutationDeltaWriter(deltaFn, source)) {
+            int cur = 0;
+            for (NaryTree naryTree : trees) {
+                if (permute_model.size() > 0)
+                    permute(naryTree, random, permute_model, GalacticGen.permutable, delta);
+                delta.write(naryTree);
+                if (Constant.verbose == 1 && ++cur % 1000 == 0)
+                    System.out.print("\r" + cur + " trees");
+            }
+            if (Constant.verbose == 1)
+                System.out.println();
+        }
+        logCaches();
+    }
 
+    private static void logCaches() {
+        log.info("Sampler cache: " + getSamplerCache());
+        if (PERMUTE_MAP.equals(Constant.permuteMode)) {
+            log.info("MAP order cache: " + getMapOrderCache());
+            log.info("MAP orders cut by --mapBudget: " + mapOrdersCut.get());
+        }
+    }
+
+    /**
+     * Opens an output treebank, in shards if --outputShardSize is set and
+     * written on background threads if --asyncWrite is.
+     */
+    private static OutputStream openLabelled(File labelledFn) throws IOException {
+        int threads = Constant.asyncWrite ? OptWrapper.threads : 0;
+        if (Constant.outputShardSize > 0)
+            return new ShardedOutputStream(labelledFn, Constant.outputShardSize, threads);
+        return Util.openOutputStream(labelledFn, threads);
+    }
+
+    public static class InvalidTreeException extends Exception {
+        /**
+         * Trees are rejected far too often for a stack trace to be worth its cost.
+         */
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
     }
 
     public double avgArcLength() {
@@ -268,76 +436,327 @@ public class TreeBank implements Iterable<NaryTree> {
         return -ent / sum;
     }
 
-    private class ChildrenOrderSamplerFast implements Sampler.DiscreteSampler<Permutation> {
+    static class ChildrenOrderSamplerFast implements Sampler.DiscreteSampler<Permutation> {
         private int[][] orders;
-        private Map<Integer, Double> dist;
+        private double[] weights, cumulative;
         private double total;
         private int totalPerm;
         Random random;
 
-        public ChildrenOrderSamplerFast(String headerPos, String[] children, Random random, Map<String, Double> model) {
+        public ChildrenOrderSamplerFast(int kind, int[] children, Random random, CompiledModel model) {
             this.random = random;
             int len = children.length;
             totalPerm = Util.factorial(len);
             double[] alphaRhs = new double[totalPerm];
-            orders = new int[totalPerm][len];
-            for (int i = 0; i < len; ++i) orders[0][i] = i;
-            Map<String, Double> features = Features.extractNodeFeatures(children);
-            alphaRhs[0] = Features.getScore(headerPos, features, model);
-            int headerIdx = Util.getHeaderIdx(children);
-            ArrayList<Entry<Integer, Integer>> swapList = Util.getSwapPos(len);
-            assert swapList.size() == totalPerm;
-            int idx = 0;
-            for (Entry<Integer, Integer> ent : swapList) {
-                if (++idx == totalPerm) break;
-                int pos1 = ent.getKey(), pos2 = ent.getValue();
-                features = new HashMap<>(features);
-                Entry<Integer, Double> diffEntry = Features.updateAndGetScoreDiff(headerPos, children, features, model, pos1, pos2, headerIdx);
-                headerIdx = diffEntry.getKey();
-                orders[idx] = orders[idx - 1].clone();
-                Util.swap(orders[idx], pos1, pos2);
-                alphaRhs[idx] = alphaRhs[idx - 1] + diffEntry.getValue();
-            }
+            OrderScorer scorer = new OrderScorer(kind, children, model);
+            alphaRhs[0] = scorer.getScore();
+            // The swaps of the sequence are all between neighbours
+            int[] swaps = Util.getSwapSequence(len);
+            for (int idx = 1; idx < totalPerm; ++idx)
+                alphaRhs[idx] = alphaRhs[idx - 1] + scorer.swap(swaps[2 * idx - 2]);
             double mx = Double.MIN_VALUE;
             for (int i = 0; i < totalPerm; ++i)
                 if (alphaRhs[i] > mx)
                     mx = alphaRhs[i];
-            dist = new HashMap<>();
-            total = 0.;
-            for (int i = 0; i < totalPerm; ++i) {
-                double factor = Math.exp(alphaRhs[i] - mx);
-                dist.put(i, factor);
-                total += factor;
-            }
+            double[] weights = new double[totalPerm];
+            for (int i = 0; i < totalPerm; ++i)
+                weights[i] = Math.exp(alphaRhs[i] - mx);
+            init(len, weights);
+        }
+
+        /**
+         * Sampler with the given unnormalized weights of the orders of len
+         * children, in the order of {@link Util#getSwapOrders(int)}, as returned by {@link #getWeights()}.
+         */
+        public ChildrenOrderSamplerFast(int len, double[] weights) {
+            totalPerm = Util.factorial(len);
+            if (weights.length != totalPerm)
+                throw new IllegalArgumentException(weights.length + " weights for the orders of " + len + " children");
+            init(len, weights);
+        }
+
+        private void init(int len, double[] weights) {
+            // The orders are shared by all the samplers of the same number of children
+            orders = Util.getSwapOrders(len);
+            this.weights = weights;
+            this.cumulative = Sampler.cumulate(weights);
+            this.total = cumulative[totalPerm - 1];
+        }
+
+        public double[] getWeights() {
+            return weights.clone();
         }
 
         public double getLogProb() {
-            return (Math.log(total) - Math.log(dist.get(0))) / Math.log(2.);
+            return (Math.log(total) - Math.log(weights[0])) / Math.log(2.);
         }
 
         public double getLogUniformProb() {
-            return Math.log((double) dist.size()) / Math.log(2.);
+            return Math.log((double) totalPerm) / Math.log(2.);
         }
 
         public Permutation sampleOne() {
-            int selectedOrderIdx = Sampler.sampleOne(dist, total, random);
-            int[] selectedOrder = orders[selectedOrderIdx];
-            return new Permutation(selectedOrder);
+            return sampleOne(random);
+        }
+
+        /**
+         * Samples an order with the given random generator, so that one sampler may be shared by several threads.
+         */
+        public Permutation sampleOne(Random random) {
+            return new Permutation(sampleOrder(random));
+        }
+
+        /**
+         * Samples an order without allocating anything.
+         *
+         * @return the positions of the children in the order, shared by all the samples of the order.
+         */
+        public int[] sampleOrder(Random random) {
+            return orders[Sampler.sampleIndex(cumulative, random)];
+        }
+
+        public int getNumOrders() {
+            return totalPerm;
+        }
+
+    }
+
+    /**
+     * Key of a sampler in the sampler cache: the model it was built with and
+     * the signature of its node, the kind of the node followed by the symbols
+     * of its children.
+     */
+    private static class SamplerKey {
+        private final CompiledModel model;
+        private final SymbolTable.Signature signature;
+
+        SamplerKey(CompiledModel model, SymbolTable.Signature signature) {
+            this.model = model;
+            this.signature = signature;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(model) * 31 + signature.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof SamplerKey && model == ((SamplerKey) obj).model && signature.equals(((SamplerKey) obj).signature);
+        }
+    }
+
+    private static final String PERMUTE_SAMPLE = "sample";
+    private static final String PERMUTE_MAP = "map";
+    private static LruCache<SamplerKey, ChildrenOrderSamplerFast> samplerCache;
+
+    /**
+     * The samplers of the child orders shared by all the permutations and
+     * threads of the run, bounded by --samplerCacheSize orders.
+     */
+    public static synchronized LruCache<?, ?> getSamplerCache() {
+        if (samplerCache == null)
+            samplerCache = new LruCache<>(Constant.samplerCacheSize);
+        return samplerCache;
+    }
+
+    /**
+     * The sampler of the orders of the children of a node under a model,
+     * built only if it is not in the sampler cache. The sampler has no random
+     * generator of its own.
+     */
+    @SuppressWarnings("unchecked")
+    private static ChildrenOrderSamplerFast getSampler(String headerPos, int[] children, CompiledModel model) {
+        int kind = SymbolTable.intern(headerPos);
+        SymbolTable.Signature signature = new SymbolTable.Signature(kind, children);
+        if (model == orderTableModel) {
+            ChildrenOrderSamplerFast sampler = orderTable.get(signature);
+            if (sampler != null)
+                return sampler;
+        }
+        LruCache<SamplerKey, ChildrenOrderSamplerFast> cache = (LruCache<SamplerKey, ChildrenOrderSamplerFast>) getSamplerCache();
+        SamplerKey key = new SamplerKey(model, signature);
+        ChildrenOrderSamplerFast sampler = cache.get(key);
+        if (sampler == null) {
+            sampler = new ChildrenOrderSamplerFast(kind, children, null, model);
+            sampler = cache.putIfAbsent(key, sampler, sampler.getNumOrders());
+        }
+        return sampler;
+    }
+
+    private static LruCache<SamplerKey, int[]> mapOrderCache;
+    private static final AtomicLong mapOrdersCut = new AtomicLong();
+
+    /**
+     * The most likely orders of the children of the nodes met in the run,
+     * bounded by --samplerCacheSize children.
+     */
+    public static synchronized LruCache<?, ?> getMapOrderCache() {
+        if (mapOrderCache == null)
+            mapOrderCache = new LruCache<>(Constant.samplerCacheSize);
+        return mapOrderCache;
+    }
+
+    /**
+     * The most likely order of the children of a node under a model, found
+     * by {@link OrderScorer#getBestOrder(long)} only if it is not in the MAP
+     * order cache.
+     *
+     * @return the original positions of the children in the order, shared by all the nodes of the same signature.
+     */
+    @SuppressWarnings("unchecked")
+    private static int[] getMapOrder(String headerPos, int[] children, CompiledModel model) {
+        int kind = SymbolTable.intern(headerPos);
+        LruCache<SamplerKey, int[]> cache = (LruCache<SamplerKey, int[]>) getMapOrderCache();
+        SamplerKey key = new SamplerKey(model, new SymbolTable.Signature(kind, children));
+        int[] order = cache.get(key);
+        if (order == null) {
+            OrderScorer scorer = new OrderScorer(kind, children, model);
+            order = scorer.getBestOrder(Constant.mapBudget);
+            if (!scorer.isBestOrderProven())
+                mapOrdersCut.incrementAndGet();
+            order = cache.putIfAbsent(key, order, order.length);
+        }
+        return order;
+    }
+
+    /**
+     * Samples an order of the children of a node too wide for its orders to
+     * be enumerated, by --mcmcSteps steps of Metropolis-Hastings from their
+     * original order: each step proposes to swap two neighbours chosen at
+     * random, and keeps the swap with probability min(1, exp(score diff)).
+     *
+     * @return the original positions of the children in the order.
+     */
+    private static int[] sampleOrderMcmc(int kind, int[] children, CompiledModel model, Random random) {
+        OrderScorer scorer = new OrderScorer(kind, children, model);
+        for (int step = 0; step < Constant.mcmcSteps; ++step) {
+            int pos = random.nextInt(children.length - 1);
+            double diff = scorer.swap(pos);
+            if (diff < 0 && random.nextDouble() >= Math.exp(diff))
+                scorer.swap(pos);
+        }
+        return scorer.getOrder();
+    }
+
+    private static final int ORDER_TABLE_MAGIC = 0x47444f54; // "GDOT"
+    private static final int ORDER_TABLE_VERSION = 2;
+    private static volatile CompiledModel orderTableModel;
+    private static Map<SymbolTable.Signature, ChildrenOrderSamplerFast> orderTable;
+
+    /**
+     * The kind (NOUN or VERB) of a node whose children are permuted, or null if they are not.
+     */
+    private static String getPermutedKind(NaryTree node, Set<String> permutable) {
+        if (!node.isLeaf() && node.getChildren().size() > 1 &&
+                (node.isNoun() && permutable.contains(Constant.NOUN)
+                        || (node.isVerb() && permutable.contains(Constant.VERB))))
+            return node.isVerb() ? Constant.VERB : Constant.NOUN;
+        return null;
+    }
+
+    /**
+     * Computes the distributions of the child orders of every node of the
+     * trees which would be permuted under a model mixture, and writes them to
+     * an ordering table, read back by {@link #loadOrderTable(File, CompiledModel)}.
+     * <p>
+     * The table stores the feature, the bounds of the high order features, a
+     * checksum of the model, then for every distinct signature its kind, the
+     * symbols of its children and the weights of their n! orders.
+     */
+    public static void compileOrderTable(Iterable<NaryTree> trees, CompiledModel model, Set<String> permutable,
+                                         File tableFn) throws IOException {
+        log.info("Compile ordering table to: " + tableFn.getAbsolutePath());
+        final Set<SymbolTable.Signature> signatures = new LinkedHashSet<>();
+        final Set<String> kinds = permutable;
+        Lambda.FnO1ToVoid<NaryTree> collect = new Lambda.FnO1ToVoid<NaryTree>() {
+            @Override
+            public void call(NaryTree node) {
+                String kind = getPermutedKind(node, kinds);
+                // The orders of wider nodes are not enumerated but sampled by Metropolis-Hastings
+                if (kind == null || node.getChildren().size() > Constant.mcmcFanOut) return;
+                signatures.add(new SymbolTable.Signature(SymbolTable.intern(kind), node.getChildrenSymbolIds(GalacticGen.feature)));
+            }
+        };
+        int numTrees = 0;
+        for (NaryTree tree : trees) {
+            tree.preOrderTraversal(collect);
+            ++numTrees;
+        }
+        try (DataOutputStream out = new DataOutputStream(Util.openOutputStream(tableFn))) {
+            out.writeInt(ORDER_TABLE_MAGIC);
+            out.writeInt(ORDER_TABLE_VERSION);
+            out.writeUTF(GalacticGen.feature);
+            out.writeInt(GalacticGen.higOrderLow);
+            out.writeInt(GalacticGen.higOrderUpper);
+            out.writeLong(model.getChecksum());
+            out.writeInt(signatures.size());
+            for (SymbolTable.Signature signature : signatures) {
+                int[] ids = signature.getIds();
+                String[] symbols = SymbolTable.get(ids);
+                String[] children = Arrays.copyOfRange(symbols, 1, symbols.length);
+                ChildrenOrderSamplerFast sampler = new ChildrenOrderSamplerFast(ids[0], Arrays.copyOfRange(ids, 1, ids.length), null, model);
+                out.writeUTF(symbols[0]);
+                out.writeByte(children.length);
+                for (String child : children)
+                    out.writeUTF(child);
+                for (double weight : sampler.getWeights())
+                    out.writeDouble(weight);
+            }
         }
+        log.info(String.format("%d trees, %d signatures", numTrees, signatures.size()));
+    }
 
+    /**
+     * Loads an ordering table written by {@link #compileOrderTable(Iterable, CompiledModel, Set, File)}
+     * for the given model: the samplers of its signatures are then used
+     * instead of being built, and the other ones are built as usual.
+     */
+    public static synchronized void loadOrderTable(File tableFn, CompiledModel model) throws IOException {
+        log.info("Loading ordering table:" + tableFn.getName());
+        Map<SymbolTable.Signature, ChildrenOrderSamplerFast> table = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(Util.openInputStream(tableFn))) {
+            if (in.readInt() != ORDER_TABLE_MAGIC)
+                throw new IOException("Not an ordering table: " + tableFn);
+            int version = in.readInt();
+            if (version != ORDER_TABLE_VERSION)
+                throw new IOException("Unsupported ordering table version " + version + ": " + tableFn);
+            String feature = in.readUTF();
+            if (!feature.equals(GalacticGen.feature))
+                throw new IOException("Ordering table " + tableFn + " compiled for --feature " + feature);
+            int higOrderLow = in.readInt(), higOrderUpper = in.readInt();
+            if (higOrderLow != GalacticGen.higOrderLow || higOrderUpper != GalacticGen.higOrderUpper)
+                throw new IOException("Ordering table " + tableFn + " compiled for --higOrderLow " + higOrderLow
+                        + " --higOrderUpper " + higOrderUpper);
+            if (in.readLong() != model.getChecksum())
+                throw new IOException("Ordering table " + tableFn + " compiled for another model mixture");
+            int size = in.readInt();
+            for (int i = 0; i < size; ++i) {
+                String kind = in.readUTF();
+                int[] ids = new int[in.readUnsignedByte() + 1];
+                ids[0] = SymbolTable.intern(kind);
+                for (int c = 1; c < ids.length; ++c)
+                    ids[c] = SymbolTable.intern(in.readUTF());
+                double[] weights = new double[Util.factorial(ids.length - 1)];
+                for (int w = 0; w < weights.length; ++w)
+                    weights[w] = in.readDouble();
+                table.put(new SymbolTable.Signature(ids), new ChildrenOrderSamplerFast(ids.length - 1, weights));
+            }
+        }
+        orderTable = table;
+        orderTableModel = model;
+        log.info(table.size() + " signatures");
     }
 
     private class ModelEvaluator implements Lambda.FnO1ToVoid<NaryTree> {
-        private Map<String, Double> model;
-        private Map<String, ChildrenOrderSamplerFast> samplerMap;
+        private CompiledModel model;
         private double modelXent, uniformXent;
         private double total;
 
-        public ModelEvaluator(Map<String, Double> model) {
+        public ModelEvaluator(CompiledModel model) {
             this.model = model;
             this.modelXent = 0.;
             this.uniformXent = 0.;
-            this.samplerMap = new HashMap<>();
         }
 
         public double getRatio() {
@@ -350,24 +769,9 @@ public class TreeBank implements Iterable<NaryTree> {
 
         @Override
         public void call(NaryTree node) {
-            if (!node.isLeaf() && node.getChildren().size() > 1 &&
-                    (node.isNoun() && GalacticGen.permutable.contains(Constant.NOUN)
-                            || (node.isVerb() && GalacticGen.permutable.contains(Constant.VERB)))) {
-                String[] children;
-                if ("arc".equals(GalacticGen.feature))
-                    children = node.getChildrenArcAsString();
-                else if ("pos".equals(GalacticGen.feature))
-                    children = node.getChildrenPOSAsString();
-                else
-                    children = node.getChildrenAsString();
-                String headerPos = node.isVerb() ? Constant.VERB : Constant.NOUN;
-                String childrenString = headerPos + Constant.PERM_TAG_DEL + Util.join(Constant.CHILDREN_DEL, children);
-                ChildrenOrderSamplerFast sampler;
-                if (!samplerMap.containsKey(childrenString)) {
-                    sampler = new ChildrenOrderSamplerFast(headerPos, children, null, model);
-                    samplerMap.put(childrenString, sampler);
-                } else
-                    sampler = samplerMap.get(childrenString);
+            String headerPos = getPermutedKind(node, GalacticGen.permutable);
+            if (headerPos != null) {
+                ChildrenOrderSamplerFast sampler = getSampler(headerPos, node.getChildrenSymbolIds(GalacticGen.feature), model);
                 this.modelXent += sampler.getLogProb();
                 this.uniformXent += sampler.getLogUniformProb();
                 this.total += 1;
@@ -376,45 +780,49 @@ public class TreeBank implements Iterable<NaryTree> {
 
     }
 
-    private class PermuteChildrenFast implements Lambda.FnO1ToVoid<NaryTree> {
+    static class PermuteChildrenFast implements Lambda.FnO1ToVoid<NaryTree> {
         private Random random;
-        private Map<String, ChildrenOrderSamplerFast> samplerMap;
-        private Map<String, Double> model;
+        private CompiledModel model;
+        private Set<String> permutable;
+        private PermutationDeltaWriter delta;
 
-        public PermuteChildrenFast(Map<String, Double> model, Random random) {
+        public PermuteChildrenFast(CompiledModel model, Random random, Set<String> permutable, PermutationDeltaWriter delta) {
+            if (!PERMUTE_SAMPLE.equals(Constant.permuteMode) && !PERMUTE_MAP.equals(Constant.permuteMode))
+                throw new IllegalArgumentException("Unknown permute mode: " + Constant.permuteMode);
             this.random = random;
             this.model = model;
-            this.samplerMap = new HashMap<>();
+            this.permutable = permutable;
+            this.delta = delta;
         }
 
         @Override
         public void call(NaryTree node) {
-            if (!node.isLeaf() && node.getChildren().size() > 1 &&
-                    (node.isNoun() && GalacticGen.permutable.contains(Constant.NOUN)
-                            || (node.isVerb() && GalacticGen.permutable.contains(Constant.VERB)))) {
-                String[] children;
-                if ("arc".equals(GalacticGen.feature))
-                    children = node.getChildrenArcAsString();
-                else if ("pos".equals(GalacticGen.feature))
-                    children = node.getChildrenPOSAsString();
-                else
-                    children = node.getChildrenAsString();
-                String headerPos = node.isVerb() ? Constant.VERB : Constant.NOUN;
-                String childrenString = headerPos + Constant.PERM_TAG_DEL + Util.join(Constant.CHILDREN_DEL, children);
-                ChildrenOrderSamplerFast sampler;
-                if (!samplerMap.containsKey(childrenString)) {
-                    sampler = new ChildrenOrderSamplerFast(headerPos, children, random, model);
-                    samplerMap.put(childrenString, sampler);
-                } else
-                    sampler = samplerMap.get(childrenString);
-                Permutation perm = sampler.sampleOne();
-                int[] selectedOrder = perm.getPerm();
-                List<NaryTree> childrenNodes = node.getChildren();
-                ArrayList<NaryTree> permutedChildren = new ArrayList<>();
-                for (int i = 0; i < selectedOrder.length; ++i)
-                    permutedChildren.add(childrenNodes.get(selectedOrder[i]));
-                node.setChildren(permutedChildren);
-            }
+            int[] selectedOrder = sampleOrder(node);
+            if (selectedOrder == null) return;
+            List<NaryTree> childrenNodes = node.getChildren();
+            ArrayList<NaryTree> permutedChildren = new ArrayList<>();
+            for (int i = 0; i < selectedOrder.length; ++i)
+                permutedChildren.add(childrenNodes.get(selectedOrder[i]));
+            node.setChildren(permutedChildren);
+            if (delta != null)
+                delta.addOrder(Integer.parseInt(node.getFields().get(Constant.SRC_ID)), selectedOrder);
+        }
+
+        /**
+         * Samples an order for the children of a node, or takes their most likely one with --permuteMode map.
+         *
+         * @return the current positions of the children in their new order, or null if the node is not permuted.
+         */
+        int[] sampleOrder(NaryTree node) {
+            String headerPos = getPermutedKind(node, permutable);
+            if (headerPos == null) return null;
+            int[] children = node.getChildrenSymbolIds(GalacticGen.feature);
+            if (PERMUTE_MAP.equals(Constant.permuteMode))
+                return getMapOrder(headerPos, children, model);
+            if (children.length > Constant.mcmcFanOut)
+                return sampleOrderMcmc(SymbolTable.intern(headerPos), children, model, random);
+            ChildrenOrderSamplerFast sampler = getSampler(headerPos, children, model);
+            return sampler.sampleOrder(random);
         }
 
     }
@@ -446,10 +854,15 @@ public class TreeBank implements Iterable<NaryTree> {
 
     @Override
     public String toString() {
-        StringBuffer sb = new StringBuffer();
-        for (NaryTree naryTree : this)
-            sb.append(naryTree.getAsOneLineString() + "\n");
-        return sb.toString().trim();
+        StringBuilder sb = new StringBuilder();
+        PtbWriter writer = new PtbWriter(sb);
+        try {
+            for (NaryTree naryTree : this)
+                writer.write(naryTree);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return sb.toString();
     }
 
 
@@ -465,21 +878,40 @@ public class TreeBank implements Iterable<NaryTree> {
 //    MISC: Any other annotation.
 
     public void writeTreesToFile(File file) throws IOException {
-        BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(file));
-        bufferedWriter.write(toString());
-        bufferedWriter.close();
+        try (PtbWriter writer = new PtbWriter(file)) {
+            for (NaryTree naryTree : this)
+                writer.write(naryTree);
+        }
     }
 
     public void writeLabelled(File labelledFn) throws IOException {
-        BufferedWriter wtrlabelledFn = new BufferedWriter(new FileWriter(labelledFn));
-        for (NaryTree naryTree : this) {
-            ArrayList<String> sentenceTokensSrc = new ArrayList<>();
-            List<List<String>> fields = naryTree.toStringInConllFormat();
-            for (List<String> field : fields)
-                sentenceTokensSrc.add(field.get(1));
-            naryTree.info += "# sentence-tokens: " + StringUtils.join(sentenceTokensSrc, " ") + "\n";
-            wtrlabelledFn.write(naryTree.info);
-            for (List<String> field : fields) {
+        writeLabelled(this, labelledFn);
+    }
+
+    public static void writeLabelled(Iterable<NaryTree> trees, File labelledFn) throws IOException {
+        OutputStream out = openLabelled(labelledFn);
+        ConllWriter writer = new ConllWriter(out);
+        for (NaryTree naryTree : trees)
+            writer.write(naryTree);
+        out.close();
+    }
+
+    /**
+     * Writes a tree as UTF-8, copying the columns which were not changed from
+     * the line they were read from.
+     */
+    public static void writeLabelled(NaryTree naryTree, OutputStream out) throws IOException {
+        new ConllWriter(out).write(naryTree);
+    }
+
+    public static void writeLabelled(NaryTree naryTree, Writer wtrlabelledFn) throws IOException {
+        ArrayList<String> sentenceTokensSrc = new ArrayList<>();
+        List<List<String>> fields = naryTree.toStringInConllFormat();
+        for (List<String> field : fields)
+            sentenceTokensSrc.add(field.get(1));
+        naryTree.info += "# sentence-tokens: " + StringUtils.join(sentenceTokensSrc, " ") + "\n";
+        wtrlabelledFn.write(naryTree.info);
+        for (List<String> field : fields) {
 //            0:conllEnt.add(Integer.toString(i + 1)); //    ID: Word index, integer starting at 1 for each new sentence; may be a range for tokens with multiple words.
 //            1:conllEnt.add(fields.get(4)); // FORM: Word form or punctuation symbol (Ciphered)
 //            2:conllEnt.add(fields.get(4)); // LEMMA: Same as the word for now
@@ -488,11 +920,9 @@ public class TreeBank implements Iterable<NaryTree> {
 //            5:conllEnt.add(Integer.toString(leafEnt.getValue() + 1)); // HEAD: not available
 //            6:conllEnt.add(fields.get(3)); // DEPREL: Universal Stanford dependency relation to the HEAD (root iff HEAD = 0) or a defined language-specific subtype of one.
 //            7:conllEnt.add(fields.get(0));// MISC: Any other annotation. (original word form)
-                wtrlabelledFn.write(StringUtils.join(field, "\t") + "\n");
-            }
-            wtrlabelledFn.write("\n");
+            wtrlabelledFn.write(StringUtils.join(field, "\t") + "\n");
         }
-        wtrlabelledFn.close();
+        wtrlabelledFn.write("\n");
     }
 
     @Override
@@ -500,12 +930,12 @@ public class TreeBank implements Iterable<NaryTree> {
         return trees.iterator();
     }
 
-    private class CollectRules implements Lambda.FnO1ToVoid<NaryTree> {
+    private static class CountRules implements Lambda.FnO1ToVoid<NaryTree> {
 
-        List<Rule> allRules;
+        Grammar grammar;
 
-        public CollectRules(List<Rule> allRules) {
-            this.allRules = allRules;
+        public CountRules(Grammar grammar) {
+            this.grammar = grammar;
         }
 
         @Override
@@ -517,7 +947,7 @@ public class TreeBank implements Iterable<NaryTree> {
                 int idx = 0;
                 for (NaryTree child : children)
                     rhs[idx++] = child.getSymbol();
-                allRules.add(new Rule(lhs, rhs, 1.0));
+                grammar.addRule(new Rule(lhs, rhs, 1.0));
             }
         }
 
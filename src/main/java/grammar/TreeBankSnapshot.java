@@ -0,0 +1,280 @@
+package grammar;
+
+import org.apache.log4j.Logger;
+import util.Constant;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.*;
+
+/**
+ * Binary, column-oriented snapshot of a validated treebank.
+ * <p>
+ * All the string columns share one dictionary and are stored as int
+ * columns over the whole treebank, next to the HEAD column, the source line
+ * numbers and the comments of every sentence. Reading a snapshot skips the
+ * text parsing and the validation: a tree is rebuilt from its columns when
+ * it is asked for.
+ * <p>
+ * The widest node of every sentence is stored as well, so that one snapshot
+ * made with an unlimited --ruleLength serves any later --ruleLength.
+ *
+ * @author wdd
+ */
+public class TreeBankSnapshot extends AbstractList<NaryTree> {
+
+    private static final Logger log = Logger.getLogger(TreeBankSnapshot.class);
+    private static final int MAGIC = 0x47445442; // "GDTB"
+    private static final int VERSION = 1;
+    static final String[] STRING_COLUMNS = {Constant.FORM, Constant.LEMMA, Constant.UPOS, Constant.POS,
+            Constant.FEATURE, Constant.DEPREL, Constant.DEP, Constant.MISC, Constant.SRC_ID, Constant.SRC_FORM};
+    /**
+     * Positions of the HEAD, source file name and source line of a word after its string columns in
+     * {@link #encode(NaryTree, Map, List)}, and number of ints of a word.
+     */
+    static final int HEAD = STRING_COLUMNS.length, SRC_NAME = HEAD + 1, SRC_LINE = HEAD + 2, NUM_FIELDS = HEAD + 3;
+
+    private List<String> dictionary;
+    private int[][] columns;
+    private int[] heads, srcNames, srcLines;
+    private int[] sentStart, sentInfo, kept;
+
+    private TreeBankSnapshot(String[] dictionary, int[][] columns, int[] heads, int[] srcNames, int[] srcLines,
+                             int[] sentStart, int[] sentInfo, int[] kept) {
+        this.dictionary = Arrays.asList(dictionary);
+        this.columns = columns;
+        this.heads = heads;
+        this.srcNames = srcNames;
+        this.srcLines = srcLines;
+        this.sentStart = sentStart;
+        this.sentInfo = sentInfo;
+        this.kept = kept;
+    }
+
+    @Override
+    public int size() {
+        return kept.length;
+    }
+
+    /**
+     * Rebuilds the idx-th tree. Every call returns a new tree.
+     */
+    @Override
+    public NaryTree get(int idx) {
+        int sent = kept[idx];
+        int start = sentStart[sent], len = sentStart[sent + 1] - start;
+        int[] words = new int[len * NUM_FIELDS];
+        for (int j = 0; j < len; ++j) {
+            int t = start + j;
+            for (int c = 0; c < STRING_COLUMNS.length; ++c)
+                words[j * NUM_FIELDS + c] = columns[c][t];
+            words[j * NUM_FIELDS + HEAD] = heads[t];
+            words[j * NUM_FIELDS + SRC_NAME] = srcNames[t];
+            words[j * NUM_FIELDS + SRC_LINE] = srcLines[t];
+        }
+        return decode(words, len, dictionary.get(sentInfo[sent]), dictionary);
+    }
+
+    /**
+     * The words of a tree in their current order, as {@link #NUM_FIELDS} ints
+     * each: the ids of their string columns in the dictionary, their 1-based
+     * HEAD, the id of the name of their source file and their source line (-1
+     * if unknown).
+     *
+     * @param dict    the ids of the strings of the dictionary, to which new strings are added.
+     * @param strings the strings of the dictionary.
+     */
+    static int[] encode(NaryTree tree, Map<String, Integer> dict, List<String> strings) {
+        List<SimpleEntry<NaryTree, Integer>> leaves = tree.getDependencies();
+        int[] words = new int[leaves.size() * NUM_FIELDS];
+        for (int j = 0; j < leaves.size(); ++j) {
+            Map<String, String> fields = leaves.get(j).getKey().getFields();
+            int w = j * NUM_FIELDS;
+            for (int c = 0; c < STRING_COLUMNS.length; ++c)
+                words[w + c] = lookup(fields.get(STRING_COLUMNS[c]), dict, strings);
+            words[w + HEAD] = leaves.get(j).getValue() + 1;
+            String srcLine = fields.get(Constant.SRC_LINE);
+            int sep = srcLine.lastIndexOf(':');
+            int line = -1;
+            try {
+                line = Integer.parseInt(srcLine.substring(sep + 1));
+                srcLine = srcLine.substring(0, sep);
+            } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            }
+            words[w + SRC_NAME] = lookup(srcLine, dict, strings);
+            words[w + SRC_LINE] = line;
+        }
+        return words;
+    }
+
+    /**
+     * Rebuilds a tree from its words encoded by {@link #encode(NaryTree, Map, List)}.
+     */
+    static NaryTree decode(int[] words, int len, String info, List<String> dictionary) {
+        List<NaryTree> naryTreeArray = new ArrayList<>(len);
+        List<Integer> headArray = new ArrayList<>(len);
+        for (int j = 0; j < len; ++j) {
+            int w = j * NUM_FIELDS;
+            String srcLine = words[w + SRC_LINE] < 0 ? dictionary.get(words[w + SRC_NAME])
+                    : dictionary.get(words[w + SRC_NAME]) + ":" + words[w + SRC_LINE];
+            naryTreeArray.add(NaryTree.newTokenNode(j + 1, dictionary.get(words[w]), dictionary.get(words[w + 1]),
+                    dictionary.get(words[w + 2]), dictionary.get(words[w + 3]), dictionary.get(words[w + 4]),
+                    dictionary.get(words[w + 5]), dictionary.get(words[w + 6]), dictionary.get(words[w + 7]),
+                    srcLine, dictionary.get(words[w + 8])));
+            headArray.add(words[w + HEAD] - 1);
+        }
+        NaryTree root = NaryTree.assembleTree(naryTreeArray, headArray);
+        root.info = info;
+        return root;
+    }
+
+    /**
+     * Whether a file starts like a snapshot.
+     */
+    public static boolean isSnapshot(File file) {
+        if (!file.isFile() || file.length() < 8) return false;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readInt() == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public static void write(Iterable<NaryTree> trees, File file) throws IOException {
+        log.info("Save snapshot to: " + file.getAbsolutePath());
+        Map<String, Integer> dict = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+        IntList[] columns = new IntList[STRING_COLUMNS.length];
+        for (int c = 0; c < columns.length; ++c)
+            columns[c] = new IntList();
+        IntList heads = new IntList(), srcNames = new IntList(), srcLines = new IntList();
+        IntList sentLength = new IntList(), sentMaxChildren = new IntList(), sentInfo = new IntList();
+        for (NaryTree tree : trees) {
+            int[] words = encode(tree, dict, strings);
+            int len = words.length / NUM_FIELDS;
+            for (int j = 0; j < len; ++j) {
+                for (int c = 0; c < STRING_COLUMNS.length; ++c)
+                    columns[c].add(words[j * NUM_FIELDS + c]);
+                heads.add(words[j * NUM_FIELDS + HEAD]);
+                srcNames.add(words[j * NUM_FIELDS + SRC_NAME]);
+                srcLines.add(words[j * NUM_FIELDS + SRC_LINE]);
+            }
+            NaryTree.CountMaxChildren maxChildren = new NaryTree.CountMaxChildren();
+            tree.postOrderTraversal(maxChildren);
+            sentLength.add(len);
+            sentMaxChildren.add(maxChildren.count);
+            sentInfo.add(lookup(tree.info, dict, strings));
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(strings.size());
+            for (String str : strings) {
+                byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            out.writeInt(sentLength.size());
+            out.writeInt(heads.size());
+            sentLength.writeTo(out);
+            sentMaxChildren.writeTo(out);
+            sentInfo.writeTo(out);
+            for (IntList column : columns)
+                column.writeTo(out);
+            heads.writeTo(out);
+            srcNames.writeTo(out);
+            srcLines.writeTo(out);
+        }
+        log.info(String.format("%d trees, %d tokens, %d distinct strings", sentLength.size(), heads.size(), strings.size()));
+    }
+
+    /**
+     * Reads a snapshot, keeping only the trees allowed by the current --ruleLength.
+     */
+    public static TreeBankSnapshot read(File file) throws IOException {
+        log.info("Loading snapshot:" + file.getName());
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.length() > Integer.MAX_VALUE)
+                throw new IOException("Snapshot larger than 2GB: " + file);
+            MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (buf.getInt() != MAGIC)
+                throw new IOException("Not a treebank snapshot: " + file);
+            int version = buf.getInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported snapshot version " + version + ": " + file);
+            String[] dictionary = new String[buf.getInt()];
+            byte[] bytes = new byte[256];
+            for (int i = 0; i < dictionary.length; ++i) {
+                int len = buf.getInt();
+                if (len > bytes.length) bytes = new byte[len];
+                buf.get(bytes, 0, len);
+                dictionary[i] = new String(bytes, 0, len, StandardCharsets.UTF_8);
+            }
+            int numSents = buf.getInt(), numTokens = buf.getInt();
+            int[] sentLength = readInts(buf, numSents), sentMaxChildren = readInts(buf, numSents), sentInfo = readInts(buf, numSents);
+            int[][] columns = new int[STRING_COLUMNS.length][];
+            for (int c = 0; c < columns.length; ++c)
+                columns[c] = readInts(buf, numTokens);
+            int[] heads = readInts(buf, numTokens), srcNames = readInts(buf, numTokens), srcLines = readInts(buf, numTokens);
+            int[] sentStart = new int[numSents + 1];
+            IntList kept = new IntList();
+            for (int i = 0; i < numSents; ++i) {
+                sentStart[i + 1] = sentStart[i] + sentLength[i];
+                if (sentMaxChildren[i] <= Constant.ruleLength)
+                    kept.add(i);
+            }
+            log.info(Integer.toString(kept.size()) + "/" + Integer.toString(numSents) + " are valid trees");
+            return new TreeBankSnapshot(dictionary, columns, heads, srcNames, srcLines, sentStart, sentInfo, kept.toArray());
+        }
+    }
+
+    private static int[] readInts(ByteBuffer buf, int n) {
+        int[] ints = new int[n];
+        IntBuffer intBuf = buf.asIntBuffer();
+        intBuf.get(ints);
+        buf.position(buf.position() + 4 * n);
+        return ints;
+    }
+
+    static int lookup(String str, Map<String, Integer> dict, List<String> strings) {
+        Integer id = dict.get(str);
+        if (id == null) {
+            id = strings.size();
+            dict.put(str, id);
+            strings.add(str);
+        }
+        return id;
+    }
+
+    /**
+     * Growable array of primitive ints.
+     */
+    private static class IntList {
+        private int[] data = new int[1024];
+        private int size;
+
+        public void add(int val) {
+            if (size == data.length)
+                data = Arrays.copyOf(data, size * 2);
+            data[size++] = val;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+
+        public void writeTo(DataOutputStream out) throws IOException {
+            for (int i = 0; i < size; ++i)
+                out.writeInt(data[i]);
+        }
+    }
+}
@@ -21,27 +21,13 @@ public class TreeBankToGrammar {
         grammar.normOverLhs();
         grammar.writeToFile(grammarFile);
         double numRoots = 0.0;
-        double loglikelihood = 0.0;
-        for (NaryTree naryTree : treeBank) {
+        for (NaryTree naryTree : treeBank)
             numRoots += naryTree.getNumRoots();
-            loglikelihood += grammar.getLoglikelihood(naryTree);
-        }
         Grammar weights = ruleCounts.copy();
         weights.globalNorm(numRoots);
         weights.writeToFile(weightFile);
-        if (statFile != null) {
-            BufferedWriter bfwtr = new BufferedWriter(new FileWriter(statFile));
-            bfwtr.write("numRoots:" + numRoots + "\n");
-            bfwtr.write("loglikelihood:" + loglikelihood + "\n");
-            bfwtr.write("condEnt:" + treeBank.condEnt() + "\n");
-            Map<Integer, Integer> dist = grammar.getRuleLengthDist();
-            Integer cnt = 0;
-            for (Integer i : dist.keySet()) {
-                cnt += dist.get(i);
-                bfwtr.write("Length Dist:" + i.toString() + '\t' + cnt.toString() + "\n");
-            }
-            bfwtr.close();
-        }
+        if (statFile != null)
+            writeStats(statFile, grammar, treeBank, numRoots);
     }
 
     public static void genGrammarFromTreeBank(TreeBank treeBank, File grammarFile, File statFile) throws IOException {
@@ -87,9 +73,60 @@ public class TreeBankToGrammar {
         }
     }
 
+    /**
+     * Same as {@link #genGrammarFromTreeBank(TreeBank, File, File, File)} for
+     * a treebank file in Penn Treebank format, which is streamed twice: once
+     * to count the rules, and once for the log-likelihood of its trees under
+     * the normalized grammar. Only the grammar is held in memory.
+     */
     public static void genGrammarFromTreeBank(File treeBankFile, File grammarFile, File weightFile, File statFile) throws IOException {
-        TreeBank treeBank = new TreeBank(TreeBank.DEFAULT_ROOT);
-        treeBank.readTreesInPtbFormat(treeBankFile);
-        genGrammarFromTreeBank(treeBank, grammarFile, weightFile, statFile);
+        Grammar ruleCounts = new Grammar(TreeBank.DEFAULT_ROOT);
+        double numRoots = 0.0;
+        try (PtbReader reader = new PtbReader(treeBankFile)) {
+            for (NaryTree naryTree : reader) {
+                TreeBank.countRules(naryTree, TreeBank.DEFAULT_ROOT, ruleCounts);
+                numRoots += naryTree.getNumRoots();
+            }
+        }
+        Grammar grammar = ruleCounts.copy();
+        grammar.normOverLhs();
+        grammar.writeToFile(grammarFile);
+        Grammar weights = ruleCounts.copy();
+        weights.globalNorm(numRoots);
+        weights.writeToFile(weightFile);
+        if (statFile != null)
+            try (PtbReader reader = new PtbReader(treeBankFile)) {
+                writeStats(statFile, grammar, reader, numRoots);
+            }
+    }
+
+    /**
+     * Writes the statistics of the trees under their normalized grammar:
+     * the number of roots, the log-likelihood of the trees, their conditional
+     * entropy as in {@link TreeBank#condEnt()} and the cumulated distribution
+     * of the rule lengths, reading the trees once.
+     */
+    private static void writeStats(File statFile, Grammar grammar, Iterable<NaryTree> trees, double numRoots) throws IOException {
+        double loglikelihood = 0.0;
+        double ent = 0., perm = 0.;
+        for (NaryTree naryTree : trees) {
+            loglikelihood += grammar.getLoglikelihood(naryTree);
+            Map<String, Double> statistics = naryTree.getStatistics();
+            if (statistics.containsKey("ent")) {
+                ent += statistics.get("ent");
+                perm += statistics.get("ent");
+            }
+        }
+        BufferedWriter bfwtr = new BufferedWriter(new FileWriter(statFile));
+        bfwtr.write("numRoots:" + numRoots + "\n");
+        bfwtr.write("loglikelihood:" + loglikelihood + "\n");
+        bfwtr.write("condEnt:" + (-ent / perm) + "\n");
+        Map<Integer, Integer> dist = grammar.getRuleLengthDist();
+        Integer cnt = 0;
+        for (Integer i : dist.keySet()) {
+            cnt += dist.get(i);
+            bfwtr.write("Length Dist:" + i.toString() + '\t' + cnt.toString() + "\n");
+        }
+        bfwtr.close();
     }
 }
@@ -0,0 +1,148 @@
+package grammar;
+
+import edu.jhu.prim.bimap.IntObjectBimap;
+import org.apache.log4j.Logger;
+import util.Util;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Streaming reader for treebanks in Universal CoNLL format.
+ * <p>
+ * Trees are parsed one sentence at a time while iterating, so the memory
+ * footprint depends on the longest sentence rather than on the size of the
+ * treebank. Invalid trees are skipped, exactly as in
+ * {@link TreeBank#readTreesInUniversalConLLFormat(int, File)}.
+ *
+ * @author wdd
+ */
+public class UniversalConLLReader implements Iterator<NaryTree>, Iterable<NaryTree>, Closeable {
+
+    private static final Logger log = Logger.getLogger(UniversalConLLReader.class);
+    private UniversalConLLTokenizer tokenizer;
+    private ConllSentence sentence;
+    private SentenceValidator validator;
+    private int maxsent;
+    private int val, total;
+    private NaryTree next;
+    private boolean closed;
+
+    public UniversalConLLReader(File treeBankFile) throws IOException {
+        this(treeBankFile, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Reads a treebank file, which may be compressed (see {@link Util#openInputStream(File)}).
+     */
+    public UniversalConLLReader(File treeBankFile, int maxsent) throws IOException {
+        this(Util.openInputStream(treeBankFile), treeBankFile.getName(), maxsent);
+    }
+
+    public UniversalConLLReader(InputStream in, String name, int maxsent) {
+        this(in, name, 0, maxsent);
+    }
+
+    /**
+     * @param lineNumber number of lines of the file before the stream, for the SRC_LINE of the trees.
+     */
+    public UniversalConLLReader(InputStream in, String name, int lineNumber, int maxsent) {
+        this.tokenizer = new UniversalConLLTokenizer(in);
+        this.tokenizer.setLineNumber(lineNumber);
+        this.sentence = new ConllSentence();
+        this.validator = new SentenceValidator();
+        this.maxsent = maxsent;
+        log.info("Loading proposal grammar from Standard TreeBank:" + name);
+    }
+
+    /**
+     * Number of valid trees returned so far.
+     */
+    public int getNumValid() {
+        return val;
+    }
+
+    /**
+     * Number of sentences read so far, including the invalid ones.
+     */
+    public int getNumTotal() {
+        return total;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !closed)
+            next = readNext();
+        return next != null;
+    }
+
+    @Override
+    public NaryTree next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        NaryTree tree = next;
+        next = null;
+        return tree;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Iterator<NaryTree> iterator() {
+        return this;
+    }
+
+    private NaryTree readNext() {
+        try {
+            while (val < maxsent && tokenizer.readSentence(sentence)) {
+                total += 1;
+                NaryTree tree = NaryTree.readTreeInUniversalConLLFormat(sentence, validator);
+                if (tree != null) {
+                    val += 1;
+                    return tree;
+                }
+            }
+            close();
+            return null;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reads the next valid tree as a CompactTree, instead of iterating over NaryTrees.
+     *
+     * @return null after the last tree, when the reader is closed.
+     */
+    public CompactTree nextCompactTree(IntObjectBimap<String> dictionary) {
+        if (next != null)
+            throw new IllegalStateException("A NaryTree has already been read ahead");
+        try {
+            while (!closed && val < maxsent && tokenizer.readSentence(sentence)) {
+                total += 1;
+                CompactTree tree = CompactTree.readTreeInUniversalConLLFormat(sentence, validator, dictionary);
+                if (tree != null) {
+                    val += 1;
+                    return tree;
+                }
+            }
+            close();
+            return null;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        tokenizer.close();
+        log.info(Integer.toString(val) + "/" + Integer.toString(total) + " are valid trees");
+        validator.logRejected();
+    }
+}
@@ -0,0 +1,142 @@
+package grammar;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Splits a stream of UTF-8 bytes in Universal CoNLL format into sentences.
+ * <p>
+ * The bytes are scanned directly for newlines and tabs, so no String is
+ * created for a line unless one of its columns is asked for later.
+ *
+ * @author wdd
+ */
+public class UniversalConLLTokenizer implements Closeable {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private InputStream in;
+    private byte[] buf;
+    private int pos, limit;
+    private boolean eof;
+    private int lineNumber;
+    private long bufOffset;
+    private long sentenceOffset, sentenceEnd;
+    private int sentenceLineNumber;
+
+    public UniversalConLLTokenizer(InputStream in) {
+        this.in = in;
+        this.buf = new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Number of lines consumed so far.
+     */
+    public int getLineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * Sets the line number of the last line consumed, for streams which do not start at the top of a file.
+     */
+    public void setLineNumber(int lineNumber) {
+        this.lineNumber = lineNumber;
+    }
+
+    /**
+     * Offset of the first line, comments included, of the last sentence read.
+     */
+    public long getSentenceOffset() {
+        return sentenceOffset;
+    }
+
+    /**
+     * Number of bytes from the first line of the last sentence read to the end of its last line, newline included.
+     */
+    public int getSentenceLength() {
+        return (int) (sentenceEnd - sentenceOffset);
+    }
+
+    /**
+     * Line number of the first line, comments included, of the last sentence read.
+     */
+    public int getSentenceLineNumber() {
+        return sentenceLineNumber;
+    }
+
+    /**
+     * Reads the next sentence into the given one, which is cleared first.
+     *
+     * @return false if the end of the stream was reached before any token line was read.
+     */
+    public boolean readSentence(ConllSentence sentence) throws IOException {
+        sentence.clear();
+        boolean started = false;
+        while (true) {
+            int eol = findNewline();
+            if (eol < 0) {
+                if (pos == limit)
+                    return !sentence.isEmpty();
+                eol = limit; // last line without a newline
+            }
+            lineNumber += 1;
+            int lineStart = pos, start = pos, end = eol;
+            pos = eol < limit ? eol + 1 : eol;
+            while (start < end && (buf[start] & 0xff) <= ' ') ++start;
+            while (end > start && (buf[end - 1] & 0xff) <= ' ') --end;
+            if (start == end) {
+                if (!sentence.isEmpty())
+                    return true;
+                continue;
+            }
+            if (!started) {
+                started = true;
+                sentenceOffset = bufOffset + lineStart;
+                sentenceLineNumber = lineNumber;
+            }
+            sentenceEnd = bufOffset + pos;
+            if (buf[start] == '#')
+                sentence.addComment(buf, start, end, lineNumber);
+            else
+                sentence.addLine(buf, start, end, lineNumber);
+        }
+    }
+
+    /**
+     * Returns the offset of the next newline in the buffer, refilling it as needed, or -1 at the end of the stream.
+     */
+    private int findNewline() throws IOException {
+        int scanned = pos;
+        while (true) {
+            for (int i = scanned; i < limit; ++i)
+                if (buf[i] == '\n')
+                    return i;
+            if (eof)
+                return -1;
+            scanned = limit - pos;
+            fill();
+        }
+    }
+
+    private void fill() throws IOException {
+        int remaining = limit - pos;
+        if (pos > 0)
+            System.arraycopy(buf, pos, buf, 0, remaining);
+        else if (remaining == buf.length)
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        bufOffset += pos;
+        pos = 0;
+        limit = remaining;
+        int n = in.read(buf, limit, buf.length - limit);
+        if (n < 0)
+            eof = true;
+        else
+            limit += n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,204 @@
+package maxent;
+
+import grammar.SymbolTable;
+import util.Constant;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Permutation model compiled from its String form, as read from .orm files,
+ * for the code which scores the orders of children.
+ * <p>
+ * A feature name such as NOUN|BI_BOS_DET is parsed once into the symbols of
+ * its kind, its family and its children, as ids of the {@link SymbolTable},
+ * and the features are stored as a trie of these symbols: each node is an
+ * int, and its children are found in one open-addressing table keyed by the
+ * node and the symbol packed into a long. The weight of a feature is kept
+ * by the node of its last symbol, so the weight of a pair of children is
+ * two lookups from the node of the kind and family, and the n-grams sharing
+ * a prefix share its lookups. The model is read-only once compiled and may
+ * be used by several threads.
+ * <p>
+ * The symbols of the feature names are split on {@link Constant#CHILDREN_DEL},
+ * which the symbols of the treebanks never hold.
+ *
+ * @author wdd
+ */
+public final class CompiledModel {
+
+    public static final int BI = SymbolTable.intern("BI");
+    public static final int PRE = SymbolTable.intern("PRE");
+    public static final int BFR = SymbolTable.intern("BFR");
+    public static final int BTW = SymbolTable.intern("BTW");
+    public static final int AFT = SymbolTable.intern("AFT");
+    public static final int HI = SymbolTable.intern("HI");
+    /**
+     * The node of the empty prefix.
+     */
+    public static final int ROOT = 0;
+
+    private long[] keys = new long[1024];
+    private int[] children = new int[1024];
+    private double[] weights = new double[256];
+    private int[] parents = new int[256];
+    private double[] maxWeights;
+    private int numNodes = 1;
+    private final int numFeatures;
+    private final long checksum;
+
+    private CompiledModel(int numFeatures, long checksum) {
+        this.numFeatures = numFeatures;
+        this.checksum = checksum;
+    }
+
+    /**
+     * Compiles a model whose features are named as in {@link Features#getScore(String, Map, Map)}.
+     */
+    public static CompiledModel compile(Map<String, Double> model) {
+        CompiledModel compiled = new CompiledModel(model.size(), checksum(model));
+        for (Map.Entry<String, Double> entry : model.entrySet()) {
+            String name = entry.getKey();
+            int del = name.indexOf(Constant.PERM_TAG_DEL);
+            if (del < 0)
+                throw new IllegalArgumentException("No kind in the feature: " + name);
+            int node = compiled.addChild(ROOT, SymbolTable.intern(name.substring(0, del)));
+            String feature = name.substring(del + Constant.PERM_TAG_DEL.length());
+            for (String symbol : feature.split(Pattern.quote(Constant.CHILDREN_DEL), -1))
+                node = compiled.addChild(node, SymbolTable.intern(symbol));
+            compiled.weights[node] = entry.getValue();
+        }
+        // A node is added after its parent, so the children are met first from the last node on
+        compiled.maxWeights = new double[compiled.numNodes];
+        for (int node = compiled.numNodes - 1; node > ROOT; --node) {
+            int parent = compiled.parents[node];
+            compiled.maxWeights[node] = Math.max(compiled.maxWeights[node], compiled.weights[node]);
+            compiled.maxWeights[parent] = Math.max(compiled.maxWeights[parent], compiled.maxWeights[node]);
+        }
+        compiled.parents = null;
+        return compiled;
+    }
+
+    /**
+     * Checksum of the entries of a model, in the order of their names.
+     */
+    private static long checksum(Map<String, Double> model) {
+        CRC32 crc = new CRC32();
+        byte[] value = new byte[8];
+        for (Map.Entry<String, Double> entry : new TreeMap<>(model).entrySet()) {
+            crc.update(entry.getKey().getBytes(StandardCharsets.UTF_8));
+            long bits = Double.doubleToLongBits(entry.getValue());
+            for (int b = 0; b < 8; ++b)
+                value[b] = (byte) (bits >>> (8 * b));
+            crc.update(value, 0, 8);
+        }
+        return crc.getValue();
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static long pack(int node, int symbol) {
+        return ((long) node << 32) | (symbol & 0xffffffffL);
+    }
+
+    private int addChild(int node, int symbol) {
+        int child = getChild(node, symbol);
+        if (child >= 0)
+            return child;
+        if (2 * numNodes > keys.length)
+            rehash();
+        if (numNodes == weights.length) {
+            weights = Arrays.copyOf(weights, numNodes * 2);
+            parents = Arrays.copyOf(parents, numNodes * 2);
+        }
+        parents[numNodes] = node;
+        put(pack(node, symbol), numNodes);
+        return numNodes++;
+    }
+
+    private void put(long key, int child) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        // No node has the root as child, so 0 marks an empty slot
+        while (children[i] != 0)
+            i = (i + 1) & mask;
+        keys[i] = key;
+        children[i] = child;
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldChildren = children;
+        keys = new long[oldKeys.length * 2];
+        children = new int[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; ++i)
+            if (oldChildren[i] != 0)
+                put(oldKeys[i], oldChildren[i]);
+    }
+
+    /**
+     * The node of a prefix followed by a symbol.
+     *
+     * @return -1 if no feature starts with them, or if the node is -1.
+     */
+    public int getChild(int node, int symbol) {
+        if (node < 0)
+            return -1;
+        long key = pack(node, symbol);
+        int mask = keys.length - 1;
+        for (int i = hash(key) & mask; children[i] != 0; i = (i + 1) & mask)
+            if (keys[i] == key)
+                return children[i];
+        return -1;
+    }
+
+    /**
+     * The node of the features of a family (such as {@link #BI}) for the children of a kind of node.
+     */
+    public int getFamily(int kind, int family) {
+        return getChild(getChild(ROOT, kind), family);
+    }
+
+    /**
+     * The weight of the feature of a node, 0 if it has none or if the node is -1.
+     */
+    public double getWeight(int node) {
+        return node < 0 ? 0. : weights[node];
+    }
+
+    /**
+     * The highest weight of the features starting with the prefix of a node,
+     * or 0 if it is higher, as every other sequence of symbols weighs 0.
+     */
+    public double getMaxWeight(int node) {
+        return node < 0 ? 0. : maxWeights[node];
+    }
+
+    /**
+     * The weight of the feature of a pair of children in a family node.
+     */
+    public double getWeight(int family, int c1, int c2) {
+        return getWeight(getChild(getChild(family, c1), c2));
+    }
+
+    /**
+     * Number of features of the model.
+     */
+    public int size() {
+        return numFeatures;
+    }
+
+    /**
+     * Checksum of the String form of the model, in the order of the feature names.
+     */
+    public long getChecksum() {
+        return checksum;
+    }
+}
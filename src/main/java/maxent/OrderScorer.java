@@ -0,0 +1,502 @@
+package maxent;
+
+import datagen.GalacticGen;
+import grammar.SymbolTable;
+import util.Constant;
+import util.Util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Scores the orders of the children of a node under a permutation model,
+ * one adjacent swap at a time, as {@link Features#updateAndGetScoreDiff}
+ * does without building any feature map.
+ * <p>
+ * The BI, PRE, BFR, BTW and AFT features only depend on pairs of children,
+ * so their weights are looked up once, summed over the views of the
+ * children (tag&amp;arc, and tag and arc alone with --feature posArc), into
+ * one table per family indexed by the original positions of the children,
+ * BOS and EOS. The weights of the HI n-grams are looked up in the trie of
+ * the model when the n-grams are met.
+ *
+ * @author wdd
+ */
+public class OrderScorer {
+
+    private final int[] children;
+    private final CompiledModel model;
+    private final int n, bos, eos;
+    private final int bosSymbol, eosSymbol;
+    private final int biFamily, preFamily, bfrFamily, btwFamily, aftFamily, hiFamily;
+    private final double[][] bi, pre, bfr, btw, aft;
+    private final int[] order;
+    private int header;
+    private final int headChild;
+    private boolean bestOrderProven;
+    private final int hiMin, hiMax;
+    private double score;
+
+    /**
+     * @param kind     the symbol id of the kind (NOUN or VERB) of the node.
+     * @param children the symbol ids of the children in their original order, which is the first one scored.
+     */
+    public OrderScorer(int kind, int[] children, CompiledModel model) {
+        this.children = children;
+        this.model = model;
+        this.n = children.length;
+        this.bos = n;
+        this.eos = n + 1;
+        this.bosSymbol = SymbolTable.intern(Constant.BOS);
+        this.eosSymbol = SymbolTable.intern(Constant.EOS);
+        this.biFamily = model.getFamily(kind, CompiledModel.BI);
+        this.preFamily = model.getFamily(kind, CompiledModel.PRE);
+        this.bfrFamily = model.getFamily(kind, CompiledModel.BFR);
+        this.btwFamily = model.getFamily(kind, CompiledModel.BTW);
+        this.aftFamily = model.getFamily(kind, CompiledModel.AFT);
+        this.hiFamily = model.getFamily(kind, CompiledModel.HI);
+        this.bi = new double[n + 2][n + 2];
+        this.pre = new double[n][n];
+        this.bfr = new double[n][n];
+        this.btw = new double[n][n];
+        this.aft = new double[n][n];
+        this.order = new int[n];
+        for (int i = 0; i < n; ++i) order[i] = i;
+        this.hiMin = GalacticGen.higOrderLow;
+        this.hiMax = Math.min(n, GalacticGen.higOrderUpper);
+        addView(children);
+        if (GalacticGen.feature.equals("posArc")) {
+            int[] posList = new int[n], arcList = new int[n];
+            for (int i = 0; i < n; ++i) {
+                String[] entry = SymbolTable.get(children[i]).split(Constant.TAG_ARC_DEL);
+                posList[i] = SymbolTable.intern(entry[0]);
+                arcList[i] = SymbolTable.intern(entry[1]);
+            }
+            addView(posList);
+            addView(arcList);
+        }
+        if (hiMin <= n)
+            score += getGramWeights(hiMax - 1, n + 2 * hiMax - 3);
+        this.header = getHeaderIdx(children);
+        this.headChild = header;
+    }
+
+    /**
+     * Adds the weights of a view of the children to the tables, and the ones
+     * of its features in the original order to the score, with the header of
+     * the view as in {@link Features#extractNodeListFeatures(String[])}.
+     */
+    private void addView(int[] symbols) {
+        int viewHeader = getHeaderIdx(symbols);
+        if (viewHeader < 0) viewHeader = n;
+        for (int i = 0; i < n + 2; ++i)
+            for (int j = 0; j < n + 2; ++j) {
+                double weight = model.getWeight(biFamily, getSymbol(symbols, i), getSymbol(symbols, j));
+                bi[i][j] += weight;
+                // The bigrams of the original order
+                if (i < n - 1 && j == i + 1 || i == n - 1 && j == eos || i == bos && j == 0)
+                    score += weight;
+            }
+        for (int i = 0; i < n; ++i)
+            for (int j = 0; j < n; ++j) {
+                if (i == j) continue;
+                double preWeight = model.getWeight(preFamily, symbols[i], symbols[j]);
+                double bfrWeight = model.getWeight(bfrFamily, symbols[i], symbols[j]);
+                double btwWeight = model.getWeight(btwFamily, symbols[i], symbols[j]);
+                double aftWeight = model.getWeight(aftFamily, symbols[i], symbols[j]);
+                pre[i][j] += preWeight;
+                bfr[i][j] += bfrWeight;
+                btw[i][j] += btwWeight;
+                aft[i][j] += aftWeight;
+                if (i > j) continue;
+                score += preWeight;
+                if (j < viewHeader)
+                    score += bfrWeight;
+                else if (i < viewHeader && j > viewHeader)
+                    score += btwWeight;
+                else if (i > viewHeader)
+                    score += aftWeight;
+            }
+    }
+
+    private static int getHeaderIdx(int[] symbols) {
+        for (int i = 0; i < symbols.length; ++i)
+            if (SymbolTable.get(symbols[i]).startsWith(Constant.HEADER_MARK))
+                return i;
+        return -1;
+    }
+
+    private int getSymbol(int[] symbols, int child) {
+        return child == bos ? bosSymbol : child == eos ? eosSymbol : symbols[child];
+    }
+
+    /**
+     * Score of the original order of the children.
+     */
+    public double getScore() {
+        return score;
+    }
+
+    /**
+     * The original positions of the children in the current order.
+     */
+    public int[] getOrder() {
+        return order.clone();
+    }
+
+    /**
+     * Swaps the children at the given position and the next one in the current order.
+     *
+     * @return the difference of the score of the new order with the one of the current order.
+     */
+    public double swap(int pos1) {
+        int pos2 = pos1 + 1;
+        int a = order[pos1], b = order[pos2];
+        int prev = pos1 == 0 ? bos : order[pos1 - 1];
+        int next = pos2 == n - 1 ? eos : order[pos2 + 1];
+        double diff = bi[prev][b] + bi[b][a] + bi[a][next] - bi[prev][a] - bi[a][b] - bi[b][next];
+        diff += pre[b][a] - pre[a][b];
+        if (pos2 < header) {
+            diff += bfr[b][a] - bfr[a][b];
+        } else if (pos2 == header) {
+            for (int i = pos2 + 1; i < n; ++i)
+                diff += aft[a][order[i]] - btw[a][order[i]];
+            for (int i = 0; i < pos1; ++i)
+                diff += btw[order[i]][a] - bfr[order[i]][a];
+            header = pos1;
+        } else if (pos1 > header) {
+            diff += aft[b][a] - aft[a][b];
+        } else if (pos1 == header) {
+            for (int i = pos2 + 1; i < n; ++i)
+                diff += btw[b][order[i]] - aft[b][order[i]];
+            for (int i = 0; i < pos1; ++i)
+                diff += bfr[order[i]][b] - btw[order[i]][b];
+            header = pos2;
+        }
+        diff -= getGramWeights(pos1);
+        order[pos1] = b;
+        order[pos2] = a;
+        diff += getGramWeights(pos1);
+        return diff;
+    }
+
+    /**
+     * Sum of the weights of the HI n-grams of the current order which hold the child at pos or pos + 1, as
+     * counted by {@link Util#collectNGram(String[], int, int, Map)} with max - 1 BOS and EOS around the order.
+     */
+    private double getGramWeights(int pos) {
+        int pad = hiMax - 1;
+        return hiMin > n ? 0. : getGramWeights(pos + pad, pos + 1 + pad);
+    }
+
+    /**
+     * Sum of the weights of the HI n-grams of the current order ending between the given positions of
+     * the order padded with BOS and EOS.
+     */
+    private double getGramWeights(int firstEnd, int lastEnd) {
+        int pad = hiMax - 1;
+        double sum = 0.;
+        for (int len = hiMin; len <= hiMax; ++len)
+            for (int end = firstEnd; end <= Math.min(lastEnd + len - 1, n + 2 * pad - 1); ++end)
+                sum += getGramWeight(order, end, len);
+        return sum;
+    }
+
+    /**
+     * Weight of the HI n-gram of the given length ending at the given position of an order padded with
+     * BOS and EOS, of which only the positions of the n-gram are read.
+     */
+    private double getGramWeight(int[] order, int end, int len) {
+        int pad = hiMax - 1;
+        int node = hiFamily;
+        for (int k = end - len + 1 - pad; k <= end - pad && node >= 0; ++k)
+            node = model.getChild(node, k < 0 ? bosSymbol : k >= n ? eosSymbol : children[order[k]]);
+        return model.getWeight(node);
+    }
+
+    /**
+     * The order of the children with the highest score, found by a
+     * depth-first branch-and-bound over the prefixes of the orders.
+     * <p>
+     * A prefix is scored by the features it settles: its bigrams and HI
+     * n-grams, and the pairs of children of which one is in it, as the
+     * children out of it all come after it. Its bound adds the best weight
+     * every open feature could still take: the best predecessor of each
+     * child left and of EOS, the best side of each pair of children left
+     * and of the header, and for each HI n-gram left the highest weight of
+     * the n-grams of its length ending with its last child. The first
+     * incumbent is the order reached by {@link #climb()} from the current
+     * one, and the children are tried by decreasing gain. The scorer is
+     * left at that first incumbent.
+     *
+     * @param budget max number of prefixes to expand, after which the best order found is returned.
+     * @return the original positions of the children in the order.
+     */
+    public int[] getBestOrder(long budget) {
+        Search search = new Search(budget);
+        int[] best = search.run();
+        bestOrderProven = !search.cut;
+        return best;
+    }
+
+    /**
+     * Upper bounds of the scores of the orders starting with each of the given prefixes, as used by
+     * {@link #getBestOrder(long)}: the weight of the features a prefix settles and the bound of the open ones.
+     *
+     * @param prefixes the original positions of the first children of the orders, at least one per prefix.
+     */
+    double[] getPrefixBounds(int[][] prefixes) {
+        Search search = new Search(0);
+        double[] bounds = new double[prefixes.length];
+        for (int i = 0; i < prefixes.length; ++i)
+            bounds[i] = search.getPrefixBound(prefixes[i]);
+        return bounds;
+    }
+
+    /**
+     * Whether the last order found by {@link #getBestOrder(long)} is the best one, its budget being enough.
+     */
+    public boolean isBestOrderProven() {
+        return bestOrderProven;
+    }
+
+    /**
+     * Upper bounds of the weights of the HI n-grams ending with each child,
+     * followed by the one of all the n-grams ending with EOS: the highest
+     * weight of the n-grams of the model made of the children, BOS and EOS
+     * ending with the symbol, or 0 if it is higher, summed over the lengths.
+     */
+    private double[] getGramBounds() {
+        Map<Integer, double[]> maxEnding = new HashMap<>();
+        maxEnding.put(eosSymbol, new double[hiMax + 1]);
+        for (int child : children)
+            maxEnding.put(child, new double[hiMax + 1]);
+        int[] alphabet = new int[maxEnding.size() + 1];
+        int i = 0;
+        for (int symbol : maxEnding.keySet())
+            alphabet[i++] = symbol;
+        alphabet[i] = bosSymbol;
+        collectGramBounds(hiFamily, 0, -1, alphabet, maxEnding);
+        double[] bounds = new double[n + 1];
+        for (int y = 0; y <= n; ++y)
+            for (double weight : maxEnding.get(y < n ? children[y] : eosSymbol))
+                bounds[y] += weight;
+        // Every order has hiMax - 1 n-grams of each length ending with EOS
+        bounds[n] *= hiMax - 1;
+        return bounds;
+    }
+
+    private void collectGramBounds(int node, int len, int last, int[] alphabet, Map<Integer, double[]> maxEnding) {
+        if (len >= hiMin && maxEnding.containsKey(last)) {
+            double[] max = maxEnding.get(last);
+            max[len] = Math.max(max[len], model.getWeight(node));
+        }
+        if (len < hiMax && model.getMaxWeight(node) > 0.)
+            for (int symbol : alphabet) {
+                int child = model.getChild(node, symbol);
+                if (child >= 0)
+                    collectGramBounds(child, len + 1, symbol, alphabet, maxEnding);
+            }
+    }
+
+    /**
+     * Moves every child of the current order in turn to the position where
+     * the score is the highest, until no move raises the score.
+     */
+    private void climb() {
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            for (int i = 0; i < n; ++i) {
+                int pos = i, bestPos = i;
+                double diff = 0., bestDiff = 0.;
+                while (pos > 0) {
+                    diff += swap(--pos);
+                    if (diff > bestDiff + 1e-9) {
+                        bestDiff = diff;
+                        bestPos = pos;
+                    }
+                }
+                while (pos < n - 1) {
+                    diff += swap(pos++);
+                    if (diff > bestDiff + 1e-9) {
+                        bestDiff = diff;
+                        bestPos = pos;
+                    }
+                }
+                while (pos > bestPos)
+                    swap(--pos);
+                if (bestPos != i)
+                    improved = true;
+            }
+        }
+    }
+
+    private class Search {
+        private final int[] prefix = new int[n], best = new int[n];
+        private final boolean[] placed = new boolean[n];
+        private final int[][] candidates = new int[n][n];
+        private final double[][] gains = new double[n][n];
+        private final double[] gramBounds = hiMin <= n ? getGramBounds() : new double[n + 1];
+        // Position of the header in the prefix, -1 until it is placed
+        private int headerPos = -1;
+        private double bestScore;
+        private long budget;
+        private boolean cut;
+
+        Search(long budget) {
+            this.budget = budget;
+        }
+
+        int[] run() {
+            climb();
+            double score = 0.;
+            for (int k = 0; k < n; ++k) {
+                score += getGain(k, order[k]);
+                place(k, order[k]);
+            }
+            bestScore = score + getEndGain();
+            System.arraycopy(prefix, 0, best, 0, n);
+            for (int k = n - 1; k >= 0; --k)
+                unplace(k);
+            expand(0, 0.);
+            return best;
+        }
+
+        double getPrefixBound(int[] children) {
+            double score = 0.;
+            for (int k = 0; k < children.length; ++k) {
+                score += getGain(k, children[k]);
+                place(k, children[k]);
+            }
+            double bound = score + (children.length == n ? getEndGain() : getBound(children.length));
+            for (int k = children.length - 1; k >= 0; --k)
+                unplace(k);
+            return bound;
+        }
+
+        private void place(int k, int y) {
+            prefix[k] = y;
+            placed[y] = true;
+            if (y == headChild)
+                headerPos = k;
+        }
+
+        private void unplace(int k) {
+            placed[prefix[k]] = false;
+            if (headerPos == k)
+                headerPos = -1;
+        }
+
+        private boolean isHeaderPlaced() {
+            return headChild < 0 || headerPos >= 0;
+        }
+
+        private void expand(int k, double score) {
+            --budget;
+            int[] cands = candidates[k];
+            double[] gs = gains[k];
+            int m = 0;
+            for (int y = 0; y < n; ++y) {
+                if (placed[y]) continue;
+                cands[m] = y;
+                gs[m++] = getGain(k, y);
+            }
+            for (int c = 0; c < m; ++c) {
+                if (budget <= 0) {
+                    cut = true;
+                    return;
+                }
+                int top = c;
+                for (int d = c + 1; d < m; ++d)
+                    if (gs[d] > gs[top])
+                        top = d;
+                int y = cands[top];
+                double gain = gs[top];
+                cands[top] = cands[c];
+                gs[top] = gs[c];
+                place(k, y);
+                double next = score + gain;
+                if (k == n - 1) {
+                    next += getEndGain();
+                    if (next > bestScore) {
+                        bestScore = next;
+                        System.arraycopy(prefix, 0, best, 0, n);
+                    }
+                } else if (next + getBound(k + 1) > bestScore)
+                    expand(k + 1, next);
+                unplace(k);
+            }
+        }
+
+        /**
+         * Weight of the features settled by placing the child y after the k children of the prefix.
+         */
+        private double getGain(int k, int y) {
+            double gain = bi[k == 0 ? bos : prefix[k - 1]][y];
+            for (int i = 0; i < k; ++i) {
+                int x = prefix[i];
+                gain += pre[x][y];
+                if (x == headChild || y == headChild) continue;
+                gain += !isHeaderPlaced() ? bfr[x][y] : i < headerPos ? btw[x][y] : aft[x][y];
+            }
+            if (hiMin <= n) {
+                prefix[k] = y;
+                for (int len = hiMin; len <= hiMax; ++len)
+                    gain += getGramWeight(prefix, k + hiMax - 1, len);
+            }
+            return gain;
+        }
+
+        /**
+         * Weight of the features settled by EOS after a full order.
+         */
+        private double getEndGain() {
+            double gain = bi[prefix[n - 1]][eos];
+            if (hiMin <= n)
+                for (int len = hiMin; len <= hiMax; ++len)
+                    for (int end = n + hiMax - 1; end <= n + 2 * hiMax - 3; ++end)
+                        gain += getGramWeight(prefix, end, len);
+            return gain;
+        }
+
+        /**
+         * Upper bound of the weight of the features left open by a prefix of k children.
+         */
+        private double getBound(int k) {
+            double bound = Double.NEGATIVE_INFINITY;
+            for (int y = 0; y < n; ++y)
+                if (!placed[y])
+                    bound = Math.max(bound, bi[y][eos]);
+            boolean headerPlaced = isHeaderPlaced();
+            for (int y = 0; y < n; ++y) {
+                if (placed[y]) continue;
+                double prev = bi[prefix[k - 1]][y];
+                for (int z = 0; z < n; ++z) {
+                    if (placed[z] || z == y) continue;
+                    prev = Math.max(prev, bi[z][y]);
+                    if (z < y)
+                        bound += Math.max(pre[y][z] + getPairBound(y, z, headerPlaced),
+                                pre[z][y] + getPairBound(z, y, headerPlaced));
+                }
+                bound += prev + gramBounds[y];
+                for (int i = 0; i < k; ++i) {
+                    int x = prefix[i];
+                    bound += pre[x][y];
+                    if (x == headChild || y == headChild) continue;
+                    bound += !headerPlaced ? Math.max(bfr[x][y], btw[x][y]) : i < headerPos ? btw[x][y] : aft[x][y];
+                }
+            }
+            bound += gramBounds[n];
+            return bound;
+        }
+
+        private double getPairBound(int y, int z, boolean headerPlaced) {
+            if (y == headChild || z == headChild)
+                return 0.;
+            if (headerPlaced)
+                return aft[y][z];
+            return Math.max(bfr[y][z], Math.max(btw[y][z], aft[y][z]));
+        }
+    }
+}
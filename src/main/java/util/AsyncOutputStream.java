@@ -0,0 +1,191 @@
+package util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Output stream which hands the bytes over to a background thread, so that
+ * the thread writing them never waits for the disk or the compressor.
+ * <p>
+ * The bytes are cut into blocks. With gzip, every block is compressed into a
+ * gzip member of its own on a pool of threads, and the members are written
+ * in order: the file is a concatenated gzip stream, which any gzip reader
+ * decompresses as a whole. At most a few blocks per thread are pending, past
+ * which writes wait for the background thread.
+ * <p>
+ * Bytes only reach the underlying stream once their block is full or the
+ * stream is closed.
+ *
+ * @author wdd
+ */
+public class AsyncOutputStream extends OutputStream {
+
+    private static final int BLOCK_SIZE = 1 << 20;
+    private static final int PENDING_PER_THREAD = 2;
+    private static final Future<byte[]> END = new FutureTask<>(new Callable<byte[]>() {
+        @Override
+        public byte[] call() {
+            return null;
+        }
+    });
+
+    private final OutputStream out;
+    private final ExecutorService compressors;
+    private final BlockingQueue<Future<byte[]>> pending;
+    private final Thread writer;
+    private volatile Exception error;
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int len;
+    private boolean closed;
+
+    /**
+     * @param gzip    whether to compress the blocks into gzip members.
+     * @param threads number of threads compressing the blocks, unused without gzip.
+     */
+    public AsyncOutputStream(OutputStream out, boolean gzip, int threads) {
+        this.out = out;
+        threads = Math.max(threads, 1);
+        this.compressors = gzip ? Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "gzip-block");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }) : null;
+        this.pending = new ArrayBlockingQueue<>(PENDING_PER_THREAD * threads);
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "async-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (len == block.length)
+            submit();
+        block[len++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int n) throws IOException {
+        while (n > 0) {
+            if (len == block.length)
+                submit();
+            int m = Math.min(n, block.length - len);
+            System.arraycopy(b, off, block, len, m);
+            len += m;
+            off += m;
+            n -= m;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            // The last block is dropped after an error, which is thrown below
+            if (len > 0 && error == null)
+                submit();
+        } finally {
+            // The writer thread is ended even if the last block could not be queued
+            try {
+                put(END);
+                writer.join();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } finally {
+                if (compressors != null)
+                    compressors.shutdownNow();
+                out.close();
+            }
+        }
+        checkError();
+    }
+
+    /**
+     * Queues the current block and starts a new one.
+     */
+    private void submit() throws IOException {
+        checkError();
+        final byte[] data = block;
+        final int size = len;
+        block = new byte[BLOCK_SIZE];
+        len = 0;
+        if (compressors == null) {
+            FutureTask<byte[]> task = new FutureTask<>(new Callable<byte[]>() {
+                @Override
+                public byte[] call() {
+                    return size == data.length ? data : Arrays.copyOf(data, size);
+                }
+            });
+            task.run();
+            put(task);
+        } else {
+            put(compressors.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    return gzip(data, size);
+                }
+            }));
+        }
+    }
+
+    private void put(Future<byte[]> block) throws IOException {
+        try {
+            pending.put(block);
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void checkError() throws IOException {
+        if (error != null)
+            throw error instanceof IOException ? (IOException) error : new IOException(error);
+    }
+
+    /**
+     * Writes the blocks in the order they were queued. After an error the
+     * blocks are still taken from the queue so that writes never block, and
+     * the error is thrown by the next write.
+     */
+    private void drain() {
+        while (true) {
+            Future<byte[]> next;
+            try {
+                next = pending.take();
+            } catch (InterruptedException e) {
+                error = e;
+                return;
+            }
+            if (next == END)
+                return;
+            if (error != null)
+                continue;
+            try {
+                out.write(next.get());
+            } catch (ExecutionException e) {
+                error = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            } catch (IOException | InterruptedException e) {
+                error = e;
+            }
+        }
+    }
+
+    private static byte[] gzip(byte[] data, int size) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(size / 4 + 64);
+        try (GZIPOutputStream gz = new GZIPOutputStream(bytes, 1 << 16)) {
+            gz.write(data, 0, size);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -13,6 +13,43 @@ public class Constant {
     public static int ruleLength = 7;
     @Opt(hasArg = true, description = "Verbosity level (default=1)")
     public static int verbose = 1;
+    @Opt(hasArg = true, description = "Parse the input treebank in parallel on --threads cores (default=false)")
+    public static boolean parallelLoad = false;
+    @Opt(hasArg = true, description = "Index of the first sentence to read from a treebank, found through its .idx sentence index (default=0)")
+    public static int firstSentence = 0;
+    @Opt(hasArg = true, description = "Number of sentences to sample at random in one pass over a treebank, per stratum if --sampleStrata is set, 0 to read them all (default=0)")
+    public static int sampleSize = 0;
+    @Opt(hasArg = true, description = "Weight of a sentence for --sampleSize: uniform (default) or length (number of tokens)")
+    public static String sampleWeight = "uniform";
+    @Opt(hasArg = true, description = "Strata for --sampleSize: none (default), length (buckets of --sampleLengthBucket tokens) or rootUpos")
+    public static String sampleStrata = "none";
+    @Opt(hasArg = true, description = "Width in tokens of the length buckets of --sampleStrata length (default=10)")
+    public static int sampleLengthBucket = 10;
+    @Opt(hasArg = true, description = "Seed of the random sampling of --sampleSize (default=0)")
+    public static long sampleSeed = 0;
+    @Opt(hasArg = true, description = "Write the output treebank on background threads while the trees are permuted, a .gz output being compressed as one gzip member per block on --threads cores (default=false)")
+    public static boolean asyncWrite = false;
+    @Opt(hasArg = true, description = "Rotate the output treebank into numbered shards of this many uncompressed bytes, 0 to write a single file (default=0)")
+    public static long outputShardSize = 0;
+    @Opt(hasArg = true, description = "Keep the trees of the input treebank in off-heap arenas, each tree being rebuilt when it is used; disables --parallelLoad (default=false)")
+    public static boolean offHeap = false;
+    @Opt(hasArg = true, description = "Keep the trees of the input treebank as int arrays, each tree being rebuilt when it is used; disables --parallelLoad, --offHeap taking precedence (default=false)")
+    public static boolean compactTrees = false;
+    @Opt(hasArg = true, description = "Max total number of child orders of the samplers cached across the trees and threads of a run, 0 to cache none (default=2000000)")
+    public static long samplerCacheSize = 2000000;
+    @Opt(hasArg = true, description = "Max number of children of a node whose child orders are all enumerated, at most 10, the order of a wider node being sampled by --mcmcSteps steps of Metropolis-Hastings;\n" +
+            "the trees with wider nodes are skipped unless --ruleLength is raised above it (default=7)")
+    public static int mcmcFanOut = 7;
+    /**
+     * Largest value of --mcmcFanOut, as the orders of up to 12 children can be enumerated but would take gigabytes beyond 10.
+     */
+    public static final int MAX_MCMC_FAN_OUT = 10;
+    @Opt(hasArg = true, description = "Number of Metropolis-Hastings steps over swaps of neighbours run from the original order of a node wider than --mcmcFanOut, the last state being its sampled order (default=1000)")
+    public static int mcmcSteps = 1000;
+    @Opt(hasArg = true, description = "How the order of the children of a node is chosen: sample (default), or map for its most likely order, found by branch-and-bound")
+    public static String permuteMode = "sample";
+    @Opt(hasArg = true, description = "Max number of partial orders expanded by --permuteMode map for one node, after which the best order found is taken (default=100000)")
+    public static long mapBudget = 100000;
 
     public static int filterPuncts = 0;
     public static String srcName = "#";
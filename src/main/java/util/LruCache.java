@@ -0,0 +1,113 @@
+package util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Thread-safe cache which evicts its least recently used values once their
+ * total weight exceeds a bound, and counts its hits and misses.
+ * <p>
+ * Values are meant to be built by the caller after a miss, outside of the
+ * cache, and then offered with {@link #putIfAbsent(Object, Object, long)}:
+ * when several threads build the same value, they all end up with the one
+ * put first.
+ *
+ * @author wdd
+ */
+public class LruCache<K, V> {
+
+    private final LinkedHashMap<K, Weighted<V>> map = new LinkedHashMap<>(256, 0.75f, true);
+    private final long maxWeight;
+    private long weight;
+    private long hits, misses, evictions;
+
+    /**
+     * @param maxWeight bound of the total weight of the values, 0 to keep none.
+     */
+    public LruCache(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * The value of a key, or null on a miss.
+     */
+    public synchronized V get(K key) {
+        Weighted<V> entry = map.get(key);
+        if (entry == null) {
+            ++misses;
+            return null;
+        }
+        ++hits;
+        return entry.value;
+    }
+
+    /**
+     * Puts a value unless the key already has one, evicting the least
+     * recently used values if the bound is exceeded.
+     *
+     * A value heavier than the bound is not put, as it would evict every
+     * other value and then itself; it is counted as evicted.
+     *
+     * @return the value of the key in the cache, or the given one if it is not kept.
+     */
+    public synchronized V putIfAbsent(K key, V value, long valueWeight) {
+        Weighted<V> entry = map.get(key);
+        if (entry != null)
+            return entry.value;
+        if (valueWeight > maxWeight) {
+            ++evictions;
+            return value;
+        }
+        map.put(key, new Weighted<>(value, valueWeight));
+        weight += valueWeight;
+        Iterator<Weighted<V>> it = map.values().iterator();
+        while (weight > maxWeight && it.hasNext()) {
+            weight -= it.next().weight;
+            it.remove();
+            ++evictions;
+        }
+        return value;
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized void clear() {
+        map.clear();
+        weight = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long total = hits + misses;
+        return String.format("%d hits, %d misses (%.1f%% hits), %d evictions, %d entries of total weight %d",
+                hits, misses, total == 0 ? 0. : 100. * hits / total, evictions, map.size(), weight);
+    }
+
+    private static class Weighted<V> {
+        final V value;
+        final long weight;
+
+        Weighted(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package util;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream which rotates into numbered shards of about a fixed number
+ * of bytes: out.conllu.gz is written as out-00000.conllu.gz,
+ * out-00001.conllu.gz, ...
+ * <p>
+ * A shard is only closed between two calls to write, once it holds at least
+ * the shard size, so a writer which writes whole sentences per call never
+ * splits one across shards. Every shard is opened with
+ * {@link Util#openOutputStream(File, int)} and is compressed on its own.
+ *
+ * @author wdd
+ */
+public class ShardedOutputStream extends OutputStream {
+
+    private static final Logger log = Logger.getLogger(ShardedOutputStream.class);
+    private final File file;
+    private final long shardSize;
+    private final int threads;
+    private OutputStream shard;
+    private int numShards;
+    private long written;
+    private boolean closed;
+
+    /**
+     * @param shardSize number of uncompressed bytes after which a new shard is started.
+     * @param threads   see {@link Util#openOutputStream(File, int)}.
+     */
+    public ShardedOutputStream(File file, long shardSize, int threads) {
+        this.file = file;
+        this.shardSize = shardSize;
+        this.threads = threads;
+    }
+
+    /**
+     * The shard of the given index, numbered before the first extension of the file name.
+     */
+    public static File getShardFile(File file, int index) {
+        String name = file.getName();
+        int dot = name.indexOf('.', 1);
+        String shardName = String.format("%s-%05d%s", dot < 0 ? name : name.substring(0, dot), index,
+                dot < 0 ? "" : name.substring(dot));
+        return new File(file.getParentFile(), shardName);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        open().write(b);
+        written += 1;
+        rotate();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        open().write(b, off, len);
+        written += len;
+        rotate();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (shard != null)
+            shard.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        if (numShards == 0)
+            open();
+        if (shard != null) {
+            shard.close();
+            shard = null;
+        }
+        log.info(numShards + " shards written to " + getShardFile(file, 0).getPath() + "...");
+    }
+
+    private OutputStream open() throws IOException {
+        if (shard == null) {
+            shard = Util.openOutputStream(getShardFile(file, numShards++), threads);
+            written = 0;
+        }
+        return shard;
+    }
+
+    private void rotate() throws IOException {
+        if (written >= shardSize) {
+            shard.close();
+            shard = null;
+        }
+    }
+}
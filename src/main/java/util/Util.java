@@ -1,11 +1,17 @@
 package util;
 
 import edu.jhu.prim.bimap.IntObjectBimap;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
 import org.apache.commons.lang3.StringUtils;
 
 import java.io.*;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Created by dqwang on 14/11/21.
@@ -141,6 +147,59 @@ public class Util {
 
     }
 
+    private static final int IO_BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Opens a file for reading, decompressing it on the fly if its name ends
+     * with .gz, .tgz, .bz2, .tbz2 or .xz.
+     */
+    public static InputStream openInputStream(File fn) throws IOException {
+        String name = fn.getName();
+        InputStream in = new BufferedInputStream(new FileInputStream(fn), IO_BUFFER_SIZE);
+        if (name.endsWith(".gz") || name.endsWith(".tgz"))
+            return new BufferedInputStream(new GZIPInputStream(in, IO_BUFFER_SIZE), IO_BUFFER_SIZE);
+        if (name.endsWith(".bz2") || name.endsWith(".tbz2"))
+            return new BufferedInputStream(new BZip2CompressorInputStream(in, true), IO_BUFFER_SIZE);
+        if (name.endsWith(".xz"))
+            return new BufferedInputStream(new XZCompressorInputStream(in, true), IO_BUFFER_SIZE);
+        return in;
+    }
+
+    /**
+     * Opens a file for writing, compressing it on the fly if its name ends
+     * with .gz, .bz2 or .xz.
+     */
+    public static OutputStream openOutputStream(File fn) throws IOException {
+        String name = fn.getName();
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(fn), IO_BUFFER_SIZE);
+        if (name.endsWith(".gz"))
+            return new BufferedOutputStream(new GZIPOutputStream(out, IO_BUFFER_SIZE), IO_BUFFER_SIZE);
+        if (name.endsWith(".bz2"))
+            return new BufferedOutputStream(new BZip2CompressorOutputStream(out), IO_BUFFER_SIZE);
+        if (name.endsWith(".xz"))
+            return new BufferedOutputStream(new XZCompressorOutputStream(out), IO_BUFFER_SIZE);
+        return out;
+    }
+
+    /**
+     * Opens a file for writing like {@link #openOutputStream(File)}, but
+     * writes and compresses it on background threads if threads > 0. A .gz
+     * file is then compressed as one gzip member per block on that many
+     * threads.
+     */
+    public static OutputStream openOutputStream(File fn, int threads) throws IOException {
+        if (threads <= 0)
+            return openOutputStream(fn);
+        if (fn.getName().endsWith(".gz"))
+            return new AsyncOutputStream(new BufferedOutputStream(new FileOutputStream(fn), IO_BUFFER_SIZE), true, threads);
+        return new AsyncOutputStream(openOutputStream(fn), false, 1);
+    }
+
+    public static boolean isCompressed(File fn) {
+        String name = fn.getName();
+        return name.endsWith(".gz") || name.endsWith(".tgz") || name.endsWith(".bz2") || name.endsWith(".tbz2") || name.endsWith(".xz");
+    }
+
     public static Map<String, Double> loadText(File fn) throws IOException, ClassNotFoundException {
         Map<String, Double> model = new HashMap<>();
         BufferedReader bufferedReader = new BufferedReader(new FileReader(fn));
@@ -158,11 +217,92 @@ public class Util {
         }
     }
 
+    /**
+     * Rank of a permutation of 0..n-1 in lexicographic order (its Lehmer code), for n <= 20.
+     */
+    public static long rankPermutation(int[] perm) {
+        int n = perm.length;
+        if (n > 20)
+            throw new IllegalArgumentException("Cannot rank a permutation of " + n + " > 20 elements");
+        long rank = 0;
+        for (int i = 0; i < n; ++i) {
+            int smaller = 0;
+            for (int j = i + 1; j < n; ++j)
+                if (perm[j] < perm[i])
+                    ++smaller;
+            rank = rank * (n - i) + smaller;
+        }
+        return rank;
+    }
+
+    /**
+     * Permutation of 0..n-1 of the given rank, the inverse of {@link #rankPermutation(int[])}.
+     */
+    public static int[] unrankPermutation(long rank, int n) {
+        if (n > 20)
+            throw new IllegalArgumentException("Cannot unrank a permutation of " + n + " > 20 elements");
+        int[] digits = new int[n];
+        for (int i = n - 1; i >= 0; --i) {
+            digits[i] = (int) (rank % (n - i));
+            rank /= n - i;
+        }
+        List<Integer> left = new ArrayList<>(n);
+        for (int i = 0; i < n; ++i)
+            left.add(i);
+        int[] perm = new int[n];
+        for (int i = 0; i < n; ++i)
+            perm[i] = left.remove(digits[i]);
+        return perm;
+    }
+
     public static void update(Map<String, Double> map, String key, double val) {
         map.put(key, map.containsKey(key) ? map.get(key) + val : val);
     }
 
 
+    private static final int[][] swapSequences = new int[13][];
+    private static final int[][][] swapOrders = new int[13][][];
+
+    /**
+     * The swaps of {@link #getSwapPos(int)} as one primitive array, the k-th
+     * swap exchanging the positions at 2k and 2k + 1 in it. The array is
+     * computed once per length, and is shared: it must not be modified.
+     */
+    public static synchronized int[] getSwapSequence(int n) {
+        if (n >= swapSequences.length)
+            throw new IllegalArgumentException("Cannot enumerate the permutations of " + n + " > 12 elements");
+        if (swapSequences[n] == null) {
+            ArrayList<Entry<Integer, Integer>> swapList = getSwapPos(n);
+            int[] swaps = new int[2 * swapList.size()];
+            for (int k = 0; k < swapList.size(); ++k) {
+                swaps[2 * k] = swapList.get(k).getKey();
+                swaps[2 * k + 1] = swapList.get(k).getValue();
+            }
+            swapSequences[n] = swaps;
+        }
+        return swapSequences[n];
+    }
+
+    /**
+     * The n! permutations of n elements in the order they are reached by the
+     * swaps of {@link #getSwapSequence(int)} from the identity. The arrays are
+     * computed once per length, and are shared: they must not be modified.
+     */
+    public static synchronized int[][] getSwapOrders(int n) {
+        if (n < swapOrders.length && swapOrders[n] != null)
+            return swapOrders[n];
+        int[] swaps = getSwapSequence(n);
+        int[][] orders = new int[factorial(n)][];
+        orders[0] = new int[n];
+        for (int i = 0; i < n; ++i) orders[0][i] = i;
+        for (int k = 1; k < orders.length; ++k) {
+            orders[k] = orders[k - 1].clone();
+            swap(orders[k], swaps[2 * k - 2], swaps[2 * k - 1]);
+        }
+        swapOrders[n] = orders;
+        return orders;
+    }
+
     public static ArrayList<Entry<Integer, Integer>> getSwapPos(int N) {
         ArrayList<Entry<Integer, Integer>> swapPosList = new ArrayList<>();
         int[] p = new int[N];     // permutation
@@ -0,0 +1,132 @@
+package grammar;
+
+import datagen.GalacticGen;
+import edu.jhu.prim.util.Lambda;
+import maxent.CompiledModel;
+import maxent.Features;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import util.Constant;
+import util.Util;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Checks that the orders sampled by Metropolis-Hastings for the nodes wider
+ * than --mcmcFanOut follow the distribution the enumerating sampler draws
+ * them from, on a noun of three and one of four children.
+ *
+ * @author wdd
+ */
+public class McmcOrderTest {
+
+    private static final int NUM_SAMPLES = 10000;
+    // Four standard deviations of the frequency of an order of probability 1/2
+    private static final double TOLERANCE = 0.02;
+    private static final String[] FIXTURE = {
+            "1\tle\tle\tDET\t_\t_\t4\tdet\t_\t_",
+            "2\ttrès\ttrès\tADV\t_\t_\t3\tadvmod\t_\t_",
+            "3\tgrand\tgrand\tADJ\t_\t_\t4\tamod\t_\t_",
+            "4\tchat\tchat\tNOUN\t_\t_\t8\tnsubj\t_\t_",
+            "5\tde\tde\tADP\t_\t_\t7\tcase\t_\t_",
+            "6\tla\tle\tDET\t_\t_\t7\tdet\t_\t_",
+            "7\tmaison\tmaison\tNOUN\t_\t_\t4\tnmod\t_\t_",
+            "8\tdort\tdormir\tVERB\t_\t_\t0\troot\t_\t_",
+    };
+    private int mcmcFanOut, mcmcSteps;
+    private String srcName;
+
+    @Before
+    public void setUp() {
+        mcmcFanOut = Constant.mcmcFanOut;
+        mcmcSteps = Constant.mcmcSteps;
+        srcName = Constant.srcName;
+        Constant.mcmcFanOut = 1;
+        Constant.mcmcSteps = 500;
+        Constant.srcName = "fixture";
+    }
+
+    @After
+    public void tearDown() {
+        Constant.mcmcFanOut = mcmcFanOut;
+        Constant.mcmcSteps = mcmcSteps;
+        Constant.srcName = srcName;
+    }
+
+    @Test
+    public void testThreeChildren() {
+        checkFrequencies(3);
+    }
+
+    @Test
+    public void testFourChildren() {
+        checkFrequencies(4);
+    }
+
+    /**
+     * Samples the orders of the noun of n children of the fixture under a random model, and compares their
+     * frequencies with the probabilities of {@link TreeBank.ChildrenOrderSamplerFast}.
+     */
+    private void checkFrequencies(final int n) {
+        NaryTree tree = new UniversalConLLReader(toStream(), "fixture", Integer.MAX_VALUE).iterator().next();
+        final NaryTree[] noun = new NaryTree[1];
+        tree.preOrderTraversal(new Lambda.FnO1ToVoid<NaryTree>() {
+            @Override
+            public void call(NaryTree node) {
+                if (!node.isLeaf() && node.isNoun() && node.getChildren().size() == n)
+                    noun[0] = node;
+            }
+        });
+        assertNotNull(noun[0]);
+        int[] children = noun[0].getChildrenSymbolIds(GalacticGen.feature);
+        CompiledModel model = newModel(SymbolTable.get(children), n);
+        int kind = SymbolTable.intern(Constant.NOUN);
+        double[] weights = new TreeBank.ChildrenOrderSamplerFast(kind, children, null, model).getWeights();
+        double total = 0.;
+        for (double weight : weights)
+            total += weight;
+        Map<String, Integer> index = new HashMap<>();
+        int[][] orders = Util.getSwapOrders(n);
+        for (int i = 0; i < orders.length; ++i)
+            index.put(Arrays.toString(orders[i]), i);
+        TreeBank.PermuteChildrenFast permuter = new TreeBank.PermuteChildrenFast(model, new Random(n),
+                Collections.singleton(Constant.NOUN), null);
+        int[] counts = new int[orders.length];
+        for (int s = 0; s < NUM_SAMPLES; ++s)
+            counts[index.get(Arrays.toString(permuter.sampleOrder(noun[0])))] += 1;
+        for (int i = 0; i < orders.length; ++i)
+            assertEquals(Arrays.toString(orders[i]), weights[i] / total, (double) counts[i] / NUM_SAMPLES, TOLERANCE);
+    }
+
+    /**
+     * A NOUN model with random weights for all the features of the orders of the children.
+     */
+    private static CompiledModel newModel(String[] children, long seed) {
+        Set<String> names = new TreeSet<>();
+        for (int[] order : Util.getSwapOrders(children.length)) {
+            String[] permuted = new String[order.length];
+            for (int i = 0; i < order.length; ++i)
+                permuted[i] = children[order[i]];
+            names.addAll(Features.extractNodeFeatures(permuted).keySet());
+        }
+        Random random = new Random(seed);
+        Map<String, Double> model = new HashMap<>();
+        for (String name : names)
+            model.put(Constant.NOUN + Constant.PERM_TAG_DEL + name, 2. * random.nextDouble() - 1.);
+        return CompiledModel.compile(model);
+    }
+
+    private static ByteArrayInputStream toStream() {
+        StringBuilder text = new StringBuilder();
+        for (String line : FIXTURE)
+            text.append(line).append('\n');
+        text.append('\n');
+        return new ByteArrayInputStream(text.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
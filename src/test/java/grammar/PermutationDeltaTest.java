@@ -0,0 +1,157 @@
+package grammar;
+
+import edu.jhu.prim.util.Lambda;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import util.Constant;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Writes the permutation delta of a small treebank, expands it and checks
+ * that the trees are the ones written directly, for identity orders, the
+ * ranked orders of narrow nodes and the orders of a node wider than 20.
+ *
+ * @author wdd
+ */
+public class PermutationDeltaTest {
+
+    private File source, delta;
+    private int ruleLength;
+    private String srcName;
+
+    @Before
+    public void setUp() throws IOException {
+        ruleLength = Constant.ruleLength;
+        srcName = Constant.srcName;
+        Constant.ruleLength = 30;
+        source = File.createTempFile("delta", ".conllu");
+        delta = File.createTempFile("delta", ".gdpd");
+        StringBuilder text = new StringBuilder();
+        // A noun with four dependents under a verb
+        appendSentence(text, new String[]{"DET", "ADJ", "NOUN", "ADJ", "ADP", "VERB"}, new int[]{3, 3, 6, 3, 3, 0});
+        // A nonprojective sentence, which is not in the delta
+        appendSentence(text, new String[]{"NOUN", "DET", "VERB", "NOUN"}, new int[]{3, 4, 0, 3});
+        // A verb with 24 dependents
+        String[] upos = new String[25];
+        int[] heads = new int[25];
+        for (int i = 0; i < upos.length; ++i) {
+            upos[i] = i == 12 ? "VERB" : i % 3 == 0 ? "NOUN" : i % 3 == 1 ? "ADV" : "PUNCT";
+            heads[i] = i == 12 ? 0 : 13;
+        }
+        appendSentence(text, upos, heads);
+        // A sentence whose nodes keep their order
+        appendSentence(text, new String[]{"PRON", "VERB", "NOUN"}, new int[]{2, 0, 2});
+        try (OutputStream out = new FileOutputStream(source)) {
+            out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        Constant.ruleLength = ruleLength;
+        Constant.srcName = srcName;
+        source.delete();
+        delta.delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        byte[] direct = writeDelta();
+        ByteArrayOutputStream expanded = new ByteArrayOutputStream();
+        ConllWriter writer = new ConllWriter(expanded);
+        int numTrees = 0;
+        try (PermutationDeltaReader reader = new PermutationDeltaReader(delta, source)) {
+            for (NaryTree tree : reader) {
+                writer.write(tree);
+                ++numTrees;
+            }
+        }
+        assertEquals(3, numTrees);
+        assertArrayEquals(direct, expanded.toByteArray());
+    }
+
+    @Test
+    public void testChecksumMismatch() throws IOException {
+        writeDelta();
+        // Same length, other bytes
+        try (RandomAccessFile file = new RandomAccessFile(source, "rw")) {
+            file.seek(2);
+            file.write('X');
+        }
+        try {
+            new PermutationDeltaReader(delta, source).close();
+            fail("The delta was read against another source file");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("was made from"));
+        }
+    }
+
+    /**
+     * Permutes the trees of the source into the delta: the nodes of the first tree in turn keep their order,
+     * are reversed and are shuffled, the ones of the last tree keep their order and the others are shuffled.
+     *
+     * @return the permuted trees, as written without the delta.
+     */
+    private byte[] writeDelta() throws IOException {
+        Constant.srcName = source.getName();
+        ByteArrayOutputStream direct = new ByteArrayOutputStream();
+        ConllWriter writer = new ConllWriter(direct);
+        final Random random = new Random(0);
+        List<NaryTree> trees = new ArrayList<>();
+        for (NaryTree tree : new UniversalConLLReader(source))
+            trees.add(tree);
+        assertEquals(3, trees.size());
+        try (final PermutationDeltaWriter deltaWriter = new PermutationDeltaWriter(delta, source)) {
+            for (int t = 0; t < trees.size(); ++t) {
+                final boolean first = t == 0, keep = t == trees.size() - 1;
+                final int[] numNodes = new int[1];
+                trees.get(t).preOrderTraversal(new Lambda.FnO1ToVoid<NaryTree>() {
+                    @Override
+                    public void call(NaryTree node) {
+                        List<NaryTree> children = node.getChildren();
+                        if (node.isLeaf() || children.size() < 2) return;
+                        List<Integer> order = new ArrayList<>();
+                        for (int i = 0; i < children.size(); ++i)
+                            order.add(i);
+                        int kind = keep ? 0 : first ? numNodes[0]++ % 3 : 2;
+                        if (kind == 1)
+                            Collections.reverse(order);
+                        else if (kind == 2)
+                            Collections.shuffle(order, random);
+                        int[] positions = new int[order.size()];
+                        List<NaryTree> permuted = new ArrayList<>();
+                        for (int i = 0; i < positions.length; ++i) {
+                            positions[i] = order.get(i);
+                            permuted.add(children.get(positions[i]));
+                        }
+                        node.setChildren(permuted);
+                        deltaWriter.addOrder(Integer.parseInt(node.getFields().get(Constant.SRC_ID)), positions);
+                    }
+                });
+                trees.get(t).updateStartEnd();
+                deltaWriter.write(trees.get(t));
+                writer.write(trees.get(t));
+            }
+        }
+        return direct.toByteArray();
+    }
+
+    private static void appendSentence(StringBuilder text, String[] upos, int[] heads) {
+        for (int i = 0; i < upos.length; ++i)
+            text.append(i + 1).append("\tw").append(i + 1).append("\t_\t").append(upos[i]).append("\t_\t_\t")
+                    .append(heads[i]).append("\tdep\t").append(heads[i]).append(":dep\t_\n");
+        text.append('\n');
+    }
+}
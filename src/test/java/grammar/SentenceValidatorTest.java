@@ -0,0 +1,143 @@
+package grammar;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import util.Constant;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks {@link SentenceValidator} against the checks made on the heads
+ * before it, projectivity being tested on all the pairs of arcs, on
+ * nonprojective, cyclic, multi-root and punct-headed sentences.
+ *
+ * @author wdd
+ */
+public class SentenceValidatorTest {
+
+    private int ruleLength, filterPuncts;
+
+    @Before
+    public void setUp() {
+        ruleLength = Constant.ruleLength;
+        filterPuncts = Constant.filterPuncts;
+        Constant.ruleLength = 4;
+    }
+
+    @After
+    public void tearDown() {
+        Constant.ruleLength = ruleLength;
+        Constant.filterPuncts = filterPuncts;
+    }
+
+    @Test
+    public void testExamples() {
+        Constant.filterPuncts = 1;
+        // 1 -> 3 crosses 2 -> 4
+        assertEquals(SentenceValidator.Reason.NONPROJECTIVE, validate(new int[]{3, 4, 0, 3}, "NOUN"));
+        // 2 and 3 head each other, away from the root
+        assertEquals(SentenceValidator.Reason.VALID, validate(new int[]{0, 3, 2}, "NOUN"));
+        // Two roots, the last one being kept
+        assertEquals(SentenceValidator.Reason.VALID, validate(new int[]{0, 1, 0}, "NOUN"));
+        assertEquals(SentenceValidator.Reason.NO_ROOT, validate(new int[]{2, 1}, "NOUN"));
+        assertEquals(SentenceValidator.Reason.PUNCT_HEAD, validate(new int[]{2, 0, 2}, "NOUN", "PUNCT", "NOUN"));
+        assertEquals(SentenceValidator.Reason.PUNCT_HEAD, validate(new int[]{0, 1}, "PUNCT", "NOUN"));
+        assertEquals(SentenceValidator.Reason.MALFORMED, validate(new int[]{0, 5}, "NOUN"));
+        Constant.filterPuncts = 0;
+        assertEquals(SentenceValidator.Reason.VALID, validate(new int[]{2, 0, 2}, "NOUN", "PUNCT", "NOUN"));
+        assertEquals(SentenceValidator.Reason.FAN_OUT, validate(new int[]{0, 1, 1, 1, 1}, "NOUN"));
+    }
+
+    @Test
+    public void testRandomSentences() {
+        for (int filter = 0; filter <= 1; ++filter) {
+            Constant.filterPuncts = filter;
+            Random random = new Random(filter);
+            SentenceValidator validator = new SentenceValidator();
+            long[] expected = new long[SentenceValidator.Reason.values().length];
+            for (int s = 0; s < 20000; ++s) {
+                int n = 1 + random.nextInt(9);
+                int[] heads = new int[n];
+                String[] upos = new String[n];
+                for (int i = 0; i < n; ++i) {
+                    // Heads count from 1, 0 being the root, and are never the word itself
+                    do heads[i] = random.nextInt(4) == 0 ? 0 : 1 + random.nextInt(n);
+                    while (heads[i] == i + 1);
+                    upos[i] = random.nextInt(6) == 0 ? "PUNCT" : "NOUN";
+                }
+                SentenceValidator.Reason reason = getOldReason(heads, upos);
+                assertEquals(Arrays.toString(heads), reason, validator.validate(newSentence(heads, upos)));
+                expected[reason.ordinal()] += 1;
+            }
+            for (SentenceValidator.Reason reason : SentenceValidator.Reason.values())
+                assertEquals(reason.name(), expected[reason.ordinal()], validator.getCount(reason));
+        }
+    }
+
+    private static SentenceValidator.Reason validate(int[] heads, String... upos) {
+        String[] tags = new String[heads.length];
+        for (int i = 0; i < heads.length; ++i)
+            tags[i] = upos[Math.min(i, upos.length - 1)];
+        return new SentenceValidator().validate(newSentence(heads, tags));
+    }
+
+    /**
+     * The checks made when the trees were built from the heads, before the validator: all the pairs of
+     * arcs for projectivity, then the heads for punctuation and the root, and the widest node of the
+     * tree assembled from them. The fan-out is left to the tree when punctuation is filtered.
+     */
+    private static SentenceValidator.Reason getOldReason(int[] heads, String[] upos) {
+        List<Integer> headArray = new ArrayList<>();
+        for (int head : heads)
+            headArray.add(head - 1);
+        for (int dep1 = 0; dep1 < headArray.size(); ++dep1) {
+            int head1 = headArray.get(dep1);
+            for (int dep2 = 0; dep2 < headArray.size(); ++dep2) {
+                int head2 = headArray.get(dep2);
+                if (head1 < 0 || head2 < 0)
+                    continue;
+                if (dep1 > head1 && head1 != head2)
+                    if ((dep1 > head2 && dep1 < dep2 && head1 < head2) || (dep1 < head2 && dep1 > dep2 && head1 < dep2))
+                        return SentenceValidator.Reason.NONPROJECTIVE;
+                if (dep1 < head1 && head1 != head2)
+                    if ((head1 > head2 && head1 < dep2 && dep1 < head2) || (head1 < head2 && head1 > dep2 && dep1 < dep2))
+                        return SentenceValidator.Reason.NONPROJECTIVE;
+            }
+        }
+        if (Constant.filterPuncts > 0)
+            for (int i = 0; i < heads.length; ++i)
+                if (upos[headArray.get(i) == -1 ? i : headArray.get(i)].equals("PUNCT"))
+                    return SentenceValidator.Reason.PUNCT_HEAD;
+        List<NaryTree> naryTreeArray = new ArrayList<>();
+        for (int i = 0; i < heads.length; ++i)
+            naryTreeArray.add(NaryTree.newTokenNode(i + 1, "w", "w", upos[i], "_", "_", "dep", "_", "_", "#:" + i,
+                    Integer.toString(i + 1)));
+        NaryTree root = NaryTree.assembleTree(naryTreeArray, headArray);
+        if (root == null)
+            return SentenceValidator.Reason.NO_ROOT;
+        if (Constant.filterPuncts == 0) {
+            NaryTree.CountMaxChildren maxChildren = new NaryTree.CountMaxChildren();
+            root.postOrderTraversal(maxChildren);
+            if (maxChildren.count > Constant.ruleLength)
+                return SentenceValidator.Reason.FAN_OUT;
+        }
+        return SentenceValidator.Reason.VALID;
+    }
+
+    private static ConllSentence newSentence(int[] heads, String[] upos) {
+        ConllSentence sentence = new ConllSentence();
+        for (int i = 0; i < heads.length; ++i) {
+            byte[] line = ((i + 1) + "\tw\tw\t" + upos[i] + "\t_\t_\t" + heads[i] + "\tdep\t_\t_")
+                    .getBytes(StandardCharsets.UTF_8);
+            sentence.addLine(line, 0, line.length, i + 1);
+        }
+        return sentence;
+    }
+}
@@ -0,0 +1,117 @@
+package grammar;
+
+import org.junit.Test;
+import util.Constant;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the byte-level reading of Universal CoNLL: the kinds, IDs and
+ * heads of the lines, and the source lines of the words, with multiword
+ * and empty-node lines, CRLF line ends and no final blank line.
+ *
+ * @author wdd
+ */
+public class UniversalConLLTokenizerTest {
+
+    private static final String[] FIXTURE = {
+            "# sent_id = 1",
+            "# text = Du chat dort",
+            "1-2\tDu\t_\t_\t_\t_\t_\t_\t_\t_",
+            "1\tDe\tde\tADP\t_\t_\t3\tcase\t_\t_",
+            "2\tle\tle\tDET\t_\t_\t3\tdet\t_\t_",
+            "3\tchat\tchat\tNOUN\t_\t_\t4\tnsubj\t_\t_",
+            "3.1\tvide\t_\tNOUN\t_\t_\t_\t_\t3:nmod\t_",
+            "4\tdort\tdormir\tVERB\t_\t_\t0\troot\t_\t_",
+            "",
+            "# sent_id = 2",
+            "1\tIl\til\tPRON\t_\t_\t2\tnsubj\t_\t_",
+            "2\tdort\tdormir\tVERB\t_\t_\t0\troot\t_\t_",
+    };
+    // Source lines of the words of the two sentences, counting from 1
+    private static final int[][] WORD_LINES = {{4, 5, 6, 8}, {11, 12}};
+
+    @Test
+    public void testKinds() throws IOException {
+        UniversalConLLTokenizer tokenizer = new UniversalConLLTokenizer(toStream("\n", true));
+        ConllSentence sentence = new ConllSentence();
+        assertTrue(tokenizer.readSentence(sentence));
+        assertEquals(2, sentence.getNumComments());
+        assertEquals(3, sentence.getStartLineNumber());
+        assertEquals(6, sentence.size());
+        int[] kinds = {ConllSentence.RANGE, ConllSentence.WORD, ConllSentence.WORD, ConllSentence.WORD,
+                ConllSentence.EMPTY, ConllSentence.WORD};
+        int[] ids = {1, 1, 2, 3, 3, 4};
+        int[] heads = {ConllSentence.NO_HEAD, 3, 3, 4, ConllSentence.NO_HEAD, 0};
+        for (int i = 0; i < sentence.size(); ++i) {
+            assertEquals(kinds[i], sentence.getKind(i));
+            assertEquals(ids[i], sentence.getId(i));
+            assertEquals(heads[i], sentence.getHead(i));
+        }
+        assertTrue(tokenizer.readSentence(sentence));
+        assertEquals(11, sentence.getStartLineNumber());
+        assertEquals(2, sentence.size());
+        assertFalse(tokenizer.readSentence(sentence));
+    }
+
+    @Test
+    public void testSourceLines() throws IOException {
+        checkSourceLines("\n", true);
+    }
+
+    @Test
+    public void testSourceLinesCrlf() throws IOException {
+        checkSourceLines("\r\n", true);
+    }
+
+    @Test
+    public void testSourceLinesWithoutFinalBlankLine() throws IOException {
+        checkSourceLines("\n", false);
+        checkSourceLines("\r\n", false);
+    }
+
+    /**
+     * Reads the fixture as trees, whose words must be the WORD lines only, with their source lines.
+     */
+    private void checkSourceLines(String newline, boolean finalBlankLine) throws IOException {
+        String srcName = Constant.srcName;
+        Constant.srcName = "fixture";
+        try {
+            List<NaryTree> trees = new ArrayList<>();
+            for (NaryTree tree : new UniversalConLLReader(toStream(newline, finalBlankLine), "fixture", Integer.MAX_VALUE))
+                trees.add(tree);
+            assertEquals(WORD_LINES.length, trees.size());
+            for (int t = 0; t < trees.size(); ++t) {
+                List<NaryTree> leaves = trees.get(t).getLexicalLeaves();
+                assertEquals(WORD_LINES[t].length, leaves.size());
+                for (int w = 0; w < leaves.size(); ++w) {
+                    assertEquals("fixture:" + WORD_LINES[t][w], leaves.get(w).getFields().get(Constant.SRC_LINE));
+                    assertEquals(Integer.toString(w + 1), leaves.get(w).getFields().get(Constant.SRC_ID));
+                }
+            }
+            assertEquals("dort", trees.get(0).getLexicalLeaves().get(3).getFields().get(Constant.FORM));
+        } finally {
+            Constant.srcName = srcName;
+        }
+    }
+
+    private static ByteArrayInputStream toStream(String newline, boolean finalBlankLine) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < FIXTURE.length; ++i) {
+            text.append(FIXTURE[i]);
+            if (i + 1 < FIXTURE.length || finalBlankLine)
+                text.append(newline);
+        }
+        if (finalBlankLine)
+            text.append(newline);
+        return new ByteArrayInputStream(text.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,228 @@
+package maxent;
+
+import datagen.GalacticGen;
+import grammar.SymbolTable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import util.Constant;
+import util.Util;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the scores, best orders and bounds of {@link OrderScorer} against
+ * the scores of the feature maps of {@link Features}, on every order of up
+ * to 8 children.
+ *
+ * @author wdd
+ */
+public class OrderScorerTest {
+
+    private static final String KIND = Constant.NOUN;
+    private static final double EPS = 1e-9;
+    // Tags and arcs differ in case, as the features of the tag and arc views of posArc share one map
+    private static final String[] TAGS = {"DET", "ADJ", "NUM", "ADJ", "ADP", "DET", "ADV"};
+    private static final String[] ARCS = {"det", "amod", "nummod", "amod", "case", "det", "advmod"};
+    private static final String HEADER_TAG = Constant.HEADER_MARK + "NOUN";
+    private static final String[] FEATURES = {"pos", "arc", "posArc"};
+    private String feature;
+    private int higOrderLow, higOrderUpper;
+
+    @Before
+    public void setUp() {
+        feature = GalacticGen.feature;
+        higOrderLow = GalacticGen.higOrderLow;
+        higOrderUpper = GalacticGen.higOrderUpper;
+        GalacticGen.higOrderLow = 3;
+        // Longer than every order, so the n-grams are bounded by the number of children
+        GalacticGen.higOrderUpper = 9;
+    }
+
+    @After
+    public void tearDown() {
+        GalacticGen.feature = feature;
+        GalacticGen.higOrderLow = higOrderLow;
+        GalacticGen.higOrderUpper = higOrderUpper;
+    }
+
+    @Test
+    public void testSwapScoresPos() {
+        checkSwapScores("pos");
+    }
+
+    @Test
+    public void testSwapScoresArc() {
+        checkSwapScores("arc");
+    }
+
+    @Test
+    public void testSwapScoresPosArc() {
+        checkSwapScores("posArc");
+    }
+
+    /**
+     * Under the default bounds, the n-grams of 6 and 7 children are bounded by --higOrderUpper instead.
+     */
+    @Test
+    public void testSwapScoresDefaultOrders() {
+        GalacticGen.higOrderUpper = 5;
+        for (String feature : FEATURES)
+            checkSwapScores(feature);
+    }
+
+    /**
+     * Walks the orders of n children by the swaps of {@link Util#getSwapSequence(int)}, and compares the
+     * score of the constructor plus the swap differences with the score of the features of each order.
+     */
+    private void checkSwapScores(String feature) {
+        GalacticGen.feature = feature;
+        for (int n = 2; n <= 7; ++n) {
+            String[] children = getChildren(feature, n);
+            Map<String, Double> model = newModel(children, n);
+            OrderScorer scorer = new OrderScorer(SymbolTable.intern(KIND), intern(children), CompiledModel.compile(model));
+            int[] swaps = Util.getSwapSequence(n);
+            double score = scorer.getScore();
+            for (int k = 0; k < Util.factorial(n); ++k) {
+                assertEquals(feature + " " + Arrays.toString(children), getScore(children, model), score, EPS);
+                int pos1 = swaps[2 * k], pos2 = swaps[2 * k + 1];
+                assertEquals(pos1 + 1, pos2);
+                swap(children, pos1);
+                score += scorer.swap(pos1);
+            }
+        }
+    }
+
+    @Test
+    public void testBestOrderPos() {
+        checkBestOrder("pos", 1, 7);
+    }
+
+    @Test
+    public void testBestOrderArc() {
+        checkBestOrder("arc", 1, 7);
+    }
+
+    @Test
+    public void testBestOrderPosArc() {
+        checkBestOrder("posArc", 1, 7);
+    }
+
+    @Test
+    public void testBestOrderDefaultOrders() {
+        GalacticGen.higOrderUpper = 5;
+        for (String feature : FEATURES)
+            checkBestOrder(feature, 1, 7);
+    }
+
+    /**
+     * The orders of 8 children, with the n-grams of the default bounds.
+     */
+    @Test
+    public void testBestOrderEight() {
+        GalacticGen.higOrderUpper = 5;
+        checkBestOrder("posArc", 8, 8);
+    }
+
+    /**
+     * Compares the best order of the branch-and-bound with the best of all the orders of n children, and
+     * checks that the bound of every prefix is not below the score of its best completion.
+     */
+    private void checkBestOrder(String feature, int minN, int maxN) {
+        GalacticGen.feature = feature;
+        for (int n = minN; n <= maxN; ++n) {
+            String[] children = getChildren(feature, n);
+            Map<String, Double> model = newModel(children, n);
+            CompiledModel compiled = CompiledModel.compile(model);
+            Map<String, Double> bestCompletions = new HashMap<>();
+            double bestScore = Double.NEGATIVE_INFINITY;
+            for (int[] order : Util.getSwapOrders(n)) {
+                double score = getScore(permute(children, order), model);
+                bestScore = Math.max(bestScore, score);
+                for (int k = 1; k <= n; ++k) {
+                    String prefix = Arrays.toString(Arrays.copyOf(order, k));
+                    Double best = bestCompletions.get(prefix);
+                    bestCompletions.put(prefix, best == null ? score : Math.max(best, score));
+                }
+            }
+            OrderScorer scorer = new OrderScorer(SymbolTable.intern(KIND), intern(children), compiled);
+            int[] best = scorer.getBestOrder(Long.MAX_VALUE);
+            String message = feature + " " + Arrays.toString(children);
+            assertTrue(message, scorer.isBestOrderProven());
+            assertEquals(message, bestScore, getScore(permute(children, best), model), EPS);
+            List<int[]> prefixes = new ArrayList<>();
+            for (int[] order : Util.getSwapOrders(n))
+                for (int k = 1; k <= n; ++k)
+                    prefixes.add(Arrays.copyOf(order, k));
+            double[] bounds = scorer.getPrefixBounds(prefixes.toArray(new int[prefixes.size()][]));
+            for (int i = 0; i < bounds.length; ++i) {
+                String prefix = Arrays.toString(prefixes.get(i));
+                double completion = bestCompletions.get(prefix);
+                assertTrue(message + " " + prefix + ": bound " + bounds[i] + " < " + completion,
+                        bounds[i] >= completion - EPS);
+            }
+        }
+    }
+
+    /**
+     * The first n children of a node, with the header among them and some children repeated.
+     */
+    private static String[] getChildren(String feature, int n) {
+        String[] children = new String[n];
+        int header = n / 2;
+        for (int i = 0, j = 0; i < n; ++i) {
+            if (i == header) {
+                children[i] = "arc".equals(feature) ? Constant.HEADER_MARK
+                        : "pos".equals(feature) ? HEADER_TAG
+                        : HEADER_TAG + Constant.TAG_ARC_DEL + Constant.HEADER_MARK;
+                continue;
+            }
+            children[i] = "arc".equals(feature) ? ARCS[j] : "pos".equals(feature) ? TAGS[j]
+                    : TAGS[j] + Constant.TAG_ARC_DEL + ARCS[j];
+            ++j;
+        }
+        return children;
+    }
+
+    /**
+     * A model with random weights for about three quarters of the features of the orders of the children.
+     */
+    private static Map<String, Double> newModel(String[] children, long seed) {
+        Set<String> names = new TreeSet<>();
+        for (int[] order : Util.getSwapOrders(children.length))
+            names.addAll(Features.extractNodeFeatures(permute(children, order)).keySet());
+        Random random = new Random(seed);
+        Map<String, Double> model = new HashMap<>();
+        for (String name : names)
+            if (random.nextInt(4) > 0)
+                model.put(KIND + Constant.PERM_TAG_DEL + name, 2. * random.nextDouble() - 1.);
+        return model;
+    }
+
+    private static double getScore(String[] children, Map<String, Double> model) {
+        return Features.getScore(KIND, Features.extractNodeFeatures(children), model);
+    }
+
+    private static int[] intern(String[] children) {
+        int[] ids = new int[children.length];
+        for (int i = 0; i < children.length; ++i)
+            ids[i] = SymbolTable.intern(children[i]);
+        return ids;
+    }
+
+    private static String[] permute(String[] children, int[] order) {
+        String[] permuted = new String[order.length];
+        for (int i = 0; i < order.length; ++i)
+            permuted[i] = children[order[i]];
+        return permuted;
+    }
+
+    private static void swap(String[] children, int pos) {
+        String tmp = children[pos];
+        children[pos] = children[pos + 1];
+        children[pos + 1] = tmp;
+    }
+}